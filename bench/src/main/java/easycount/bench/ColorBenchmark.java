@@ -0,0 +1,50 @@
+package easycount.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per pixel cost of colorsAreSimilar over the pixels of a synthetic plate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorBenchmark {
+    private static final int PIXELS = 4096;
+    private static final int REFERENCE = 0xFFCDCAB9;
+
+    private int[] pixels;
+
+    @Setup
+    public void generate() {
+        BufferedImage image = SyntheticPlate.generate(128, 32, 2, 8, 12, 8, 7).getImage();
+        pixels = image.getRGB(0, 0, 128, 32, null, 0, 128);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public int colorsAreSimilar() throws Throwable {
+        int similar = 0;
+        for (int i = 0; i < PIXELS; i++) {
+            if ((boolean) Targets.COLORS_ARE_SIMILAR.invokeExact(pixels[i], REFERENCE, 100)) {
+                similar++;
+            }
+        }
+        return similar;
+    }
+}
@@ -0,0 +1,58 @@
+package easycount.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BufferedImage to Mat (colorImageToMat) and Mat to BufferedImage (matToBufferedImage) conversions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConversionBenchmark {
+    @Param({"TYPE_3BYTE_BGR", "TYPE_4BYTE_ABGR", "TYPE_INT_RGB", "TYPE_BYTE_GRAY"})
+    public String imageType;
+
+    @Param({"640x480", "2048x1536"})
+    public String resolution;
+
+    private BufferedImage image;
+    private Mat mat;
+
+    @Setup
+    public void generate() throws Throwable {
+        int[] size = SyntheticPlate.parseResolution(resolution);
+        BufferedImage bgr = SyntheticPlate.generate(size[0], size[1], 10, 20, 40, 8, 42).getImage();
+        int type = BufferedImage.class.getField(imageType).getInt(null);
+        image = new BufferedImage(size[0], size[1], type);
+        image.createGraphics().drawImage(bgr, 0, 0, null);
+        // Mat to convert back, taken out of the thread's pool so toMat calls don't overwrite it
+        mat = ((Mat) Targets.TO_MAT.invoke(image)).clone();
+    }
+
+    @Benchmark
+    public Object toMat() throws Throwable {
+        return Targets.TO_MAT.invoke(image);
+    }
+
+    @Benchmark
+    public Object toBufferedImage() throws Throwable {
+        return Targets.TO_BUFFERED_IMAGE.invoke(mat);
+    }
+}
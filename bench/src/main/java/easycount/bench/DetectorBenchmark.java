@@ -0,0 +1,70 @@
+package easycount.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end cost of every detector on a synthetic plate, with and without rendering
+ * the annotated image.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DetectorBenchmark {
+    @Param({"circles", "contours", "edges", "naive", "background"})
+    public String detector;
+
+    @Param({"640x480", "2048x1536"})
+    public String resolution;
+
+    @Param({"0", "8"})
+    public double noise;
+
+    @Param({"40"})
+    public int circles;
+
+    @Param({"false", "true"})
+    public boolean annotate;
+
+    private SyntheticPlate plate;
+    private BufferedImage image;
+    private Object params;
+
+    @Setup(Level.Trial)
+    public void generate() throws Throwable {
+        params = Targets.DEFAULT_PARAMS.invoke(detector);
+        int[] size = SyntheticPlate.parseResolution(resolution);
+        plate = SyntheticPlate.generate(size[0], size[1], circles, 20, 40, noise, 42);
+    }
+
+    // Annotations are drawn on the input, so every call gets a fresh copy
+    @Setup(Level.Invocation)
+    public void copy() {
+        image = plate.copy();
+    }
+
+    @Benchmark
+    public Object detect() throws Throwable {
+        Object result = Targets.COUNT.invoke(detector, image, params);
+        if (annotate) {
+            return Targets.ANNOTATE.invoke(image, result, params);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package easycount.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic plate images with a known number of non-overlapping colonies.
+ *
+ * Colonies are filled with the default object color on the default background color of
+ * the detectors, then gaussian noise is added to every channel. The same seed always
+ * produces the same image.
+ */
+public final class SyntheticPlate {
+    // Default object / background colors of the detectors (#CDCAB9 / #8F9392)
+    private static final int[] OBJECT_BGR = {0xB9, 0xCA, 0xCD};
+    private static final int[] BACKGROUND_BGR = {0x92, 0x93, 0x8F};
+
+    private final BufferedImage image;
+    private final List<int[]> circles;
+
+    private SyntheticPlate(BufferedImage image, List<int[]> circles) {
+        this.image = image;
+        this.circles = circles;
+    }
+
+    /**
+     * @param noise standard deviation of the per channel gaussian noise
+     */
+    public static SyntheticPlate generate(int width, int height, int circleCount,
+                                          int minRadius, int maxRadius, double noise, long seed) {
+        Random random = new Random(seed);
+        List<int[]> circles = new ArrayList<>();
+
+        // Rejection sampling of non-overlapping circles, bounded so dense requests terminate
+        for (int attempt = 0; circles.size() < circleCount && attempt < circleCount * 1000; attempt++) {
+            int r = minRadius + random.nextInt(maxRadius - minRadius + 1);
+            if (width <= 2 * r || height <= 2 * r) {
+                continue;
+            }
+            int x = r + random.nextInt(width - 2 * r);
+            int y = r + random.nextInt(height - 2 * r);
+            boolean overlaps = false;
+            for (int[] c : circles) {
+                long dx = x - c[0], dy = y - c[1];
+                // keep a gap so neighbouring colonies stay separate objects
+                long minDist = r + c[2] + 4;
+                if (dx * dx + dy * dy < minDist * minDist) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (!overlaps) {
+                circles.add(new int[]{x, y, r});
+            }
+        }
+        if (circles.size() < circleCount) {
+            throw new IllegalArgumentException("Cannot place " + circleCount + " circles on "
+                    + width + "x" + height);
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < width * height; i++) {
+            data[3 * i] = (byte) BACKGROUND_BGR[0];
+            data[3 * i + 1] = (byte) BACKGROUND_BGR[1];
+            data[3 * i + 2] = (byte) BACKGROUND_BGR[2];
+        }
+        for (int[] c : circles) {
+            int r = c[2];
+            for (int y = c[1] - r; y <= c[1] + r; y++) {
+                for (int x = c[0] - r; x <= c[0] + r; x++) {
+                    int dx = x - c[0], dy = y - c[1];
+                    if (dx * dx + dy * dy <= r * r) {
+                        int i = 3 * (y * width + x);
+                        data[i] = (byte) OBJECT_BGR[0];
+                        data[i + 1] = (byte) OBJECT_BGR[1];
+                        data[i + 2] = (byte) OBJECT_BGR[2];
+                    }
+                }
+            }
+        }
+        if (noise > 0) {
+            for (int i = 0; i < data.length; i++) {
+                int value = (data[i] & 0xFF) + (int) Math.round(random.nextGaussian() * noise);
+                data[i] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return new SyntheticPlate(image, circles);
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getCircleCount() {
+        return circles.size();
+    }
+
+    // {x, y, r} of every generated colony
+    public List<int[]> getCircles() {
+        return circles;
+    }
+
+    // Independent copy, detectors draw on their input
+    public BufferedImage copy() {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+        byte[] source = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        byte[] target = ((DataBufferByte) copy.getRaster().getDataBuffer()).getData();
+        System.arraycopy(source, 0, target, 0, source.length);
+        return copy;
+    }
+
+    /**
+     * Parses a "WIDTHxHEIGHT" resolution.
+     */
+    public static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+}
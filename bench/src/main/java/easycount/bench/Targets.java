@@ -0,0 +1,64 @@
+package easycount.bench;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Handles to the server code under test.
+ *
+ * The server classes live in the default package, which named packages cannot import and
+ * JMH does not accept for benchmark classes, so they are bound once through method
+ * handles. Handles held in static final fields are constants to the JIT and get inlined
+ * like direct calls.
+ */
+final class Targets {
+    static final MethodHandle COUNT;
+    static final MethodHandle ANNOTATE;
+    static final MethodHandle COLORS_ARE_SIMILAR;
+    static final MethodHandle TO_MAT;
+    static final MethodHandle TO_BUFFERED_IMAGE;
+    // (String detector) -> the detector's default parameters
+    static final MethodHandle DEFAULT_PARAMS;
+
+    static {
+        try {
+            // The OpenCV native library is loaded by the first call that needs it
+            Class<?> main = Class.forName("Main");
+            Class<?> detectors = Class.forName("Detectors");
+            Class<?> options = Class.forName("Options");
+            Class<?> result = Class.forName("DetectionResult");
+            Class<?> annotator = Class.forName("Annotator");
+            Class<?> bridge = Class.forName("MatBridge");
+            Class<?> mat = Class.forName("org.opencv.core.Mat");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            COUNT = unreflect(lookup, main.getDeclaredMethod("count",
+                    String.class, BufferedImage.class, Object.class));
+            ANNOTATE = unreflect(lookup, annotator.getMethod("annotate",
+                    BufferedImage.class, result, Object.class));
+            COLORS_ARE_SIMILAR = lookup.findStatic(main, "colorsAreSimilar",
+                    MethodType.methodType(boolean.class, int.class, int.class, int.class));
+            TO_MAT = unreflect(lookup, bridge.getMethod("toMat", BufferedImage.class));
+            TO_BUFFERED_IMAGE = unreflect(lookup, bridge.getMethod("toBufferedImage", mat));
+
+            Object noOptions = options.getConstructor(Map.class).newInstance(Collections.emptyMap());
+            DEFAULT_PARAMS = MethodHandles.insertArguments(
+                    lookup.unreflect(detectors.getMethod("params", String.class, options)), 1, noOptions);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle unreflect(MethodHandles.Lookup lookup, Method method) throws IllegalAccessException {
+        method.setAccessible(true);
+        return lookup.unreflect(method);
+    }
+
+    private Targets() {
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BitMaskTest {
+
+    @Test
+    void countRangesMatchPixelByPixel() {
+        Random random = new Random(1);
+        // sizes around the 64 pixel words
+        for (int size : new int[]{1, 63, 64, 65, 127, 128, 129, 200, 1000}) {
+            BitMask mask = new BitMask(size, 1);
+            boolean[] expected = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                if (random.nextBoolean()) {
+                    mask.set(i);
+                    expected[i] = true;
+                }
+            }
+            for (int from = 0; from <= size; from++) {
+                int count = 0;
+                for (int to = from; to <= size; to++) {
+                    assertEquals(count, mask.count(from, to), "count(" + from + ", " + to + ") of " + size);
+                    if (to < size && expected[to]) {
+                        count++;
+                    }
+                }
+            }
+            assertEquals(mask.count(0, size), mask.count());
+        }
+    }
+
+    @Test
+    void emptyAndReversedRangesCountNothing() {
+        BitMask mask = new BitMask(100, 1);
+        for (int i = 0; i < 100; i++) {
+            mask.set(i);
+        }
+        assertEquals(0, mask.count(10, 10));
+        assertEquals(0, mask.count(50, 10));
+        assertEquals(100, mask.count(0, 100));
+        assertEquals(36, mask.count(64, 100));
+    }
+
+    @Test
+    void setBitsSpillsIntoTheNextWord() {
+        BitMask mask = new BitMask(256, 1);
+        // 10 bits starting 3 before a word boundary, bit 4 is 0
+        mask.setBits(61, 0b1111101111L, 10);
+        for (int i = 0; i < 256; i++) {
+            boolean set = i >= 61 && i < 71 && i != 65;
+            assertEquals(set, mask.get(i), "pixel " + i);
+        }
+        // bits above count are ignored
+        mask.setBits(100, -1L, 3);
+        assertEquals(3, mask.count(100, 256));
+    }
+
+    @Test
+    void setNonZeroPacksBytes() {
+        byte[] values = new byte[150];
+        for (int i = 0; i < values.length; i += 3) {
+            values[i] = (byte) (i % 2 == 0 ? 255 : 1);
+        }
+        BitMask mask = new BitMask(20, 10);
+        mask.setNonZero(values, 130, 40);
+        for (int i = 0; i < mask.size(); i++) {
+            boolean set = i >= 40 && i < 170 && values[i - 40] != 0;
+            assertEquals(set, mask.get(i), "pixel " + i);
+        }
+    }
+
+    @Test
+    void nextSetBitSkipsEmptyWords() {
+        BitMask mask = new BitMask(30, 10);
+        mask.set(5);
+        mask.set(64);
+        mask.set(299);
+        assertEquals(5, mask.nextSetBit(0));
+        assertEquals(64, mask.nextSetBit(6));
+        assertEquals(299, mask.nextSetBit(65));
+        assertEquals(-1, mask.nextSetBit(300));
+        mask.clear(299);
+        assertEquals(-1, mask.nextSetBit(65));
+    }
+
+    @Test
+    void andOrCombineMasksOfTheSameSize() {
+        BitMask a = new BitMask(8, 8);
+        BitMask b = new BitMask(8, 8);
+        a.set(1, 1);
+        a.set(2, 2);
+        b.set(2, 2);
+        b.set(3, 3);
+
+        BitMask union = new BitMask(8, 8);
+        union.or(a);
+        union.or(b);
+        assertEquals(3, union.count());
+        a.and(b);
+        assertEquals(1, a.count());
+        assertTrue(a.get(2, 2));
+        assertFalse(a.get(1, 1));
+
+        assertThrows(IllegalArgumentException.class, () -> a.and(new BitMask(8, 7)));
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the prefix-sum ratios with a pixel-by-pixel count over the circle.
+ */
+class CircleVerifierTest {
+
+    @Test
+    void ratiosMatchPixelByPixelCount() {
+        Random random = new Random(5);
+        for (int round = 0; round < 50; round++) {
+            int width = 1 + random.nextInt(60);
+            int height = 1 + random.nextInt(60);
+            BitMask mask = randomMask(random, width, height);
+            CircleVerifier verifier = new CircleVerifier(mask);
+            for (int i = 0; i < 200; i++) {
+                // centers and radii that reach over every image border
+                int x = random.nextInt(width + 20) - 10;
+                int y = random.nextInt(height + 20) - 10;
+                int radius = random.nextInt(30);
+                assertEquals(bruteForce(mask, x, y, radius), verifier.objectRatio(x, y, radius), 1e-12,
+                        "circle " + x + "," + y + " r=" + radius + " in " + width + "x" + height);
+            }
+        }
+    }
+
+    @Test
+    void fullAndEmptyMasks() {
+        assertEquals(1.0, new CircleVerifier(full(20, 10)).objectRatio(5, 5, 4), 0);
+        assertEquals(0.0, new CircleVerifier(new BitMask(20, 10)).objectRatio(5, 5, 4), 0);
+    }
+
+    @Test
+    void circlesWithoutPixelsInTheImageHaveRatioZero() {
+        CircleVerifier verifier = new CircleVerifier(full(20, 10));
+        assertEquals(0.0, verifier.objectRatio(-10, 5, 3), 0);
+        assertEquals(0.0, verifier.objectRatio(5, 30, 3), 0);
+        assertEquals(0.0, verifier.objectRatio(5, 5, -1), 0);
+        // a radius 0 circle is its center pixel
+        assertEquals(1.0, verifier.objectRatio(0, 0, 0), 0);
+    }
+
+    @Test
+    void spansFollowTheExactCircle() {
+        // one object pixel exactly on the border at distance 5, one inside
+        BitMask mask = new BitMask(11, 11);
+        mask.set(0, 5);
+        mask.set(1, 3);
+        CircleVerifier verifier = new CircleVerifier(mask);
+        assertEquals(bruteForce(mask, 5, 5, 5), verifier.objectRatio(5, 5, 5), 1e-12);
+        assertEquals(2.0 / 81, verifier.objectRatio(5, 5, 5), 1e-12);
+    }
+
+    private static BitMask randomMask(Random random, int width, int height) {
+        double density = random.nextDouble();
+        BitMask mask = new BitMask(width, height);
+        for (int i = 0; i < mask.size(); i++) {
+            if (random.nextDouble() < density) {
+                mask.set(i);
+            }
+        }
+        return mask;
+    }
+
+    private static BitMask full(int width, int height) {
+        BitMask mask = new BitMask(width, height);
+        for (int i = 0; i < mask.size(); i++) {
+            mask.set(i);
+        }
+        return mask;
+    }
+
+    // Share of object pixels among the image pixels with dx^2 + dy^2 <= r^2
+    private static double bruteForce(BitMask mask, int centerX, int centerY, int radius) {
+        int objectPixels = 0, pixels = 0;
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int x = 0; x < mask.getWidth(); x++) {
+                long dx = x - centerX, dy = y - centerY;
+                if (radius >= 0 && dx * dx + dy * dy <= (long) radius * radius) {
+                    pixels++;
+                    if (mask.get(x, y)) {
+                        objectPixels++;
+                    }
+                }
+            }
+        }
+        return pixels == 0 ? 0 : (double) objectPixels / pixels;
+    }
+}
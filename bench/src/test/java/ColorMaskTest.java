@@ -0,0 +1,93 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the integer masks with the square-root CIE76 check they replaced.
+ */
+class ColorMaskTest {
+    private static final int[] MAX_DELTAS = {-1, 0, 1, 2, 15, 80, 100, 765, 1000};
+
+    @Test
+    void masksMatchTheSquareRootFormula() {
+        Random random = new Random(3);
+        int[] pixels = new int[4000];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(10) == 0 ? 0 : 0xFF000000 | random.nextInt(1 << 24);
+        }
+        for (int round = 0; round < 20; round++) {
+            int reference = 0xFF000000 | random.nextInt(1 << 24);
+            for (int maxDelta : MAX_DELTAS) {
+                for (int flags = 0; flags < 4; flags++) {
+                    boolean skipTransparent = (flags & 1) != 0;
+                    boolean invert = (flags & 2) != 0;
+                    BitMask mask = ColorMask.build(pixels, 80, 50, reference, maxDelta, skipTransparent, invert);
+                    for (int i = 0; i < pixels.length; i++) {
+                        boolean expected = !(skipTransparent && pixels[i] == 0)
+                                && similar(pixels[i], reference, maxDelta) != invert;
+                        assertEquals(expected, mask.get(i), "pixel " + i + " with maxDelta " + maxDelta + ", flags " + flags);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void distancesOnTheLimitAreNotSimilar() {
+        // blue differs by 5, so the distance is exactly sqrt(4 * 25) = 10
+        int a = 0xFF102030;
+        int b = 0xFF102035;
+        assertEquals(100, ColorMask.distanceSquared(a, b));
+        assertFalse(similarByLimit(a, b, 10));
+        assertTrue(similarByLimit(a, b, 11));
+        assertFalse(ColorMask.build(new int[]{a}, 1, 1, b, 10).get(0));
+        assertTrue(ColorMask.build(new int[]{a}, 1, 1, b, 11).get(0));
+        // identical colours are never similar without a positive maxDelta
+        assertFalse(similarByLimit(a, a, 0));
+        assertTrue(similarByLimit(a, a, 1));
+    }
+
+    @Test
+    void squaredLimitMatchesTheSquareRootFormula() {
+        Random random = new Random(11);
+        for (int i = 0; i < 100_000; i++) {
+            int a = random.nextInt();
+            int b = random.nextInt();
+            int maxDelta = MAX_DELTAS[random.nextInt(MAX_DELTAS.length)];
+            assertEquals(similar(a, b, maxDelta), similarByLimit(a, b, maxDelta), a + " vs " + b + ", " + maxDelta);
+        }
+    }
+
+    @Test
+    void fillWritesOnlyItsRange() {
+        int[] pixels = {0xFFD7D4C3, 0xFF000000, 0xFFD7D4C3, 0, 0xFFD7D4C3};
+        BitMask mask = new BitMask(7, 1);
+        ColorMask.fill(pixels, 1, 3, 0xFFD7D4C3, 80, true, false, mask, 3);
+        assertFalse(mask.get(2));
+        assertFalse(mask.get(3));
+        assertTrue(mask.get(4));
+        assertFalse(mask.get(5));
+        assertFalse(mask.get(6));
+    }
+
+    // The check Main.colorsAreSimilar and the masks make
+    private static boolean similarByLimit(int rgb1, int rgb2, int maxDelta) {
+        return ColorMask.distanceSquared(rgb1, rgb2) < ColorMask.similarityLimit(maxDelta);
+    }
+
+    // The previous implementation of Main.colorsAreSimilar
+    private static boolean similar(int rgb1, int rgb2, int maxDelta) {
+        Color a = new Color(rgb1);
+        Color b = new Color(rgb2);
+        int redDiff = a.getRed() - b.getRed();
+        int blueDiff = a.getBlue() - b.getBlue();
+        int greenDiff = a.getGreen() - b.getGreen();
+        double deltaE = Math.sqrt(2 * redDiff * redDiff + 4 * blueDiff * blueDiff + 3 * greenDiff * greenDiff);
+        return deltaE < maxDelta;
+    }
+}
@@ -0,0 +1,157 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the union-find labeler with the breadth-first flood fill it replaced.
+ */
+class ComponentLabelerTest {
+
+    @Test
+    void maskComponentsMatchFloodFill() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int width = 1 + random.nextInt(70);
+            int height = 1 + random.nextInt(40);
+            double density = random.nextDouble();
+            BitMask mask = new BitMask(width, height);
+            for (int i = 0; i < width * height; i++) {
+                if (random.nextDouble() < density) {
+                    mask.set(i);
+                }
+            }
+
+            ComponentLabeler.Components components = ComponentLabeler.label(mask);
+            int[] expected = floodFill(width, height, new ComponentLabeler.Linker() {
+                @Override
+                public boolean include(int index) {
+                    return mask.get(index);
+                }
+
+                @Override
+                public boolean link(int index, int neighbourIndex) {
+                    return true;
+                }
+            });
+            assertSameComponents(expected, components);
+        }
+    }
+
+    @Test
+    void linkedComponentsMatchFloodFill() {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            int width = 1 + random.nextInt(50);
+            int height = 1 + random.nextInt(50);
+            // a few gray levels with transparent holes, neighbours link when their levels are close
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextInt(8) == 0 ? 0 : 1 + random.nextInt(6);
+            }
+            ComponentLabeler.Linker linker = new ComponentLabeler.Linker() {
+                @Override
+                public boolean include(int index) {
+                    return pixels[index] != 0;
+                }
+
+                @Override
+                public boolean link(int index, int neighbourIndex) {
+                    return Math.abs(pixels[index] - pixels[neighbourIndex]) <= 1;
+                }
+            };
+
+            assertSameComponents(floodFill(width, height, linker), ComponentLabeler.label(width, height, linker));
+        }
+    }
+
+    @Test
+    void statisticsOfASingleComponent() {
+        BitMask mask = new BitMask(10, 6);
+        // a diagonal line is one 8-connected component
+        for (int i = 0; i < 5; i++) {
+            mask.set(2 + i, 1 + i);
+        }
+        ComponentLabeler.Components components = ComponentLabeler.label(mask);
+
+        assertEquals(1, components.count());
+        assertEquals(5, components.area(1));
+        assertEquals(2, components.minX(1));
+        assertEquals(1, components.minY(1));
+        assertEquals(6, components.maxX(1));
+        assertEquals(5, components.maxY(1));
+        assertEquals(4.0, components.centroidX(1), 1e-9);
+        assertEquals(3.0, components.centroidY(1), 1e-9);
+        assertEquals(0, components.label(0, 0));
+    }
+
+    // Labels of the 8-connected components found by a breadth-first search from every unlabelled pixel
+    private static int[] floodFill(int width, int height, ComponentLabeler.Linker linker) {
+        int[] labels = new int[width * height];
+        int next = 0;
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int start = 0; start < labels.length; start++) {
+            if (labels[start] != 0 || !linker.include(start)) {
+                continue;
+            }
+            labels[start] = ++next;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                int index = queue.poll();
+                int x = index % width;
+                int y = index / width;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = x + dx;
+                        int ny = y + dy;
+                        if ((dx == 0 && dy == 0) || nx < 0 || ny < 0 || nx >= width || ny >= height) {
+                            continue;
+                        }
+                        int neighbour = ny * width + nx;
+                        if (labels[neighbour] == 0 && linker.include(neighbour) && linker.link(index, neighbour)) {
+                            labels[neighbour] = next;
+                            queue.add(neighbour);
+                        }
+                    }
+                }
+            }
+        }
+        return labels;
+    }
+
+    // Same partition of the pixels, and the statistics of every component match the flood fill
+    private static void assertSameComponents(int[] expected, ComponentLabeler.Components components) {
+        int width = components.getWidth();
+        int count = 0;
+        for (int label : expected) {
+            count = Math.max(count, label);
+        }
+        assertEquals(count, components.count(), "component count");
+
+        int[] toActual = new int[count + 1];
+        int[] toExpected = new int[count + 1];
+        int[] area = new int[count + 1];
+        for (int i = 0; i < expected.length; i++) {
+            int actual = components.label(i % width, i / width);
+            if (expected[i] == 0) {
+                assertEquals(0, actual, "label of background pixel " + i);
+                continue;
+            }
+            if (toActual[expected[i]] == 0) {
+                toActual[expected[i]] = actual;
+            }
+            if (toExpected[actual] == 0) {
+                toExpected[actual] = expected[i];
+            }
+            assertEquals(toActual[expected[i]], actual, "label of pixel " + i);
+            assertEquals(toExpected[actual], expected[i], "label of pixel " + i);
+            area[expected[i]]++;
+        }
+        for (int label = 1; label <= count; label++) {
+            assertEquals(area[label], components.area(toActual[label]), "area of component " + label);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DetectorsTest {
+
+    @Test
+    void detectorsReadTheirOwnParameters() {
+        // Hough settings are not part of the parameters of the other detectors
+        Options hough = options("--dp", "2", "--min-dist", "30");
+        assertEquals(RegionParams.NAIVE.toJson(), ((RegionParams) Detectors.params("naive", hough)).toJson());
+        assertEquals(RegionParams.BACKGROUND.toJson(),
+                ((RegionParams) Detectors.params("background", hough)).toJson());
+        assertEquals(EdgeParams.DEFAULT, Detectors.params("edges", hough));
+        assertEquals(2, ((CircleParams) Detectors.params("circles", hough)).getDp(), 0);
+
+        RegionParams region = (RegionParams) Detectors.params("background", options("--min-area", "5",
+                "--max-area", "900", "--color", "#102030"));
+        assertEquals(5, region.getMinArea());
+        assertEquals(900, region.getMaxArea());
+        assertEquals(0x102030, region.getReferenceRgb() & 0xFFFFFF);
+        // not given, so the background defaults stay
+        assertTrue(region.isInvert());
+        assertEquals(RegionParams.BACKGROUND.getMaxDelta(), region.getMaxDelta());
+
+        assertEquals(new EdgeParams(3, 40), Detectors.params("contours", options("--blur", "3", "--canny-low", "40")));
+    }
+
+    @Test
+    void edgesRenderWithOpenCv() {
+        Preprocessed image = new Preprocessed(new BufferedImage(8, 8, BufferedImage.TYPE_3BYTE_BGR));
+        assertTrue(Detectors.get("edges").usesOpenCv(image));
+    }
+
+    private static Options options(String... args) {
+        return new Options(args, 0);
+    }
+}
@@ -0,0 +1,165 @@
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decodes a PNG whose pixels encode their own coordinates, so every decoded pixel tells
+ * which source pixel it came from.
+ */
+class ImageDecoderTest {
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 80;
+
+    @Test
+    void subsamplingReadsEveryNthPixel() throws IOException {
+        BufferedImage image = new ImageDecoder(3, null).read(png());
+        assertEquals(34, image.getWidth());
+        assertEquals(27, image.getHeight());
+        assertSourcePixels(image, 0, 0, 3);
+    }
+
+    @Test
+    void regionReadsOnlyThatPart() throws IOException {
+        BufferedImage image = new ImageDecoder(1, new Rectangle(10, 20, 30, 40)).read(png());
+        assertEquals(30, image.getWidth());
+        assertEquals(40, image.getHeight());
+        assertSourcePixels(image, 10, 20, 1);
+    }
+
+    @Test
+    void subsamplingStartsAtTheRegion() throws IOException {
+        BufferedImage image = new ImageDecoder(2, new Rectangle(11, 5, 20, 30)).read(png());
+        assertEquals(10, image.getWidth());
+        assertEquals(15, image.getHeight());
+        assertSourcePixels(image, 11, 5, 2);
+    }
+
+    @Test
+    void regionsAreClippedToTheImage() throws IOException {
+        ImageDecoder decoder = new ImageDecoder(1, new Rectangle(90, 70, 50, 50));
+        BufferedImage image = decoder.read(png());
+        assertEquals(10, image.getWidth());
+        assertEquals(10, image.getHeight());
+        assertSourcePixels(image, 90, 70, 1);
+        assertEquals(new Rectangle(90, 70, 10, 10), ImageDecoder.sourceBounds(image));
+        assertEquals(new Rectangle(90, 70, 10, 10), decoder.sourceBounds(png()));
+
+        ImageDecoder outside = new ImageDecoder(1, new Rectangle(WIDTH, 0, 10, 10));
+        assertThrows(IOException.class, () -> outside.read(png()));
+    }
+
+    @Test
+    void decodedImagesCarryTheirSourceBounds() throws IOException {
+        assertEquals(new Rectangle(0, 0, WIDTH, HEIGHT), ImageDecoder.sourceBounds(new ImageDecoder(3, null).read(png())));
+        assertEquals(new Rectangle(11, 5, 20, 30), new ImageDecoder(2, new Rectangle(11, 5, 20, 30)).sourceBounds(png()));
+        assertNull(ImageDecoder.sourceBounds(ImageDecoder.FULL.read(png())));
+        assertNull(ImageDecoder.FULL.sourceBounds(png()));
+    }
+
+    @Test
+    void opaqueImagesAreDecodedAsBgr() throws IOException {
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, new ImageDecoder(2, null).read(png()).getType());
+    }
+
+    @Test
+    void resultsAreMappedBackToSourcePixels() {
+        ImageDecoder decoder = new ImageDecoder(2, new Rectangle(10, 20, 30, 40));
+        DetectionResult result = new DetectionResult("circles", 15, 20);
+        result.add(new DetectionResult.DetectedObject(5, 6, 4, 50));
+        result.reject(3);
+
+        DetectionResult source = decoder.toSource(result, new Rectangle(10, 20, 30, 40));
+        assertEquals(30, source.getWidth());
+        assertEquals(40, source.getHeight());
+        assertEquals(1, source.count());
+        DetectionResult.DetectedObject object = source.getObjects().get(0);
+        assertEquals(20, object.getX(), 0);
+        assertEquals(32, object.getY(), 0);
+        assertEquals(8, object.getRadius(), 0);
+        assertEquals(200, object.getArea(), 0);
+        assertEquals(3, source.getRejected());
+
+        assertSame(result, ImageDecoder.FULL.toSource(result, null));
+    }
+
+    @Test
+    void sourceSizeIsClampedToTheDecodedBounds() throws IOException {
+        // 100 / 3 rounds up to 34 decoded pixels, which would map back to 102
+        ImageDecoder decoder = new ImageDecoder(3, null);
+        BufferedImage image = decoder.read(png());
+        DetectionResult result = new DetectionResult("circles", image.getWidth(), image.getHeight());
+        DetectionResult source = decoder.toSource(result, ImageDecoder.sourceBounds(image));
+        assertEquals(WIDTH, source.getWidth());
+        assertEquals(HEIGHT, source.getHeight());
+    }
+
+    @Test
+    void circleParamsShrinkWithTheSubsampling() {
+        CircleParams scaled = (CircleParams) new ImageDecoder(3, null).scale(CircleParams.DEFAULT);
+        assertEquals(CircleParams.DEFAULT.getMinDist() / 3, scaled.getMinDist(), 1e-9);
+        assertEquals(CircleParams.DEFAULT.getMinRadius() / 3, scaled.getMinRadius());
+        // the largest radius rounds up so no circle falls out of the range
+        assertEquals((CircleParams.DEFAULT.getMaxRadius() + 2) / 3, scaled.getMaxRadius());
+        assertEquals(CircleParams.DEFAULT.getMaxDelta(), scaled.getMaxDelta());
+        assertSame(CircleParams.DEFAULT, ImageDecoder.FULL.scale(CircleParams.DEFAULT));
+        // the other detectors keep their parameters
+        assertSame(RegionParams.NAIVE, new ImageDecoder(3, null).scale(RegionParams.NAIVE));
+    }
+
+    @Test
+    void optionsSelectTheDecoder() {
+        CircleParams params = new CircleParams(1, 20, 40, 10, 40, 80, 0, 100, 5, 0.6, false);
+        assertSame(ImageDecoder.FULL, ImageDecoder.from(options(), "circles", params));
+        assertEquals(4, ImageDecoder.from(options("--subsample", "auto"), "circles", params).getSubsampling());
+        assertTrue(ImageDecoder.from(options("--subsample", "auto"), "naive", RegionParams.NAIVE).isFull());
+        // area limits of the region detectors are in source pixels
+        assertThrows(IllegalArgumentException.class,
+                () -> ImageDecoder.from(options("--subsample", "2"), "naive", RegionParams.NAIVE));
+        assertEquals(1, ImageDecoder.from(options("--subsample", "1", "--region", "0,0,5,5"), "naive",
+                RegionParams.NAIVE).getSubsampling());
+
+        ImageDecoder decoder = ImageDecoder.from(options("--subsample", "2", "--region", "1, 2,3,4"), "circles", params);
+        assertEquals(2, decoder.getSubsampling());
+        assertEquals(new Rectangle(1, 2, 3, 4), decoder.getRegion());
+        assertThrows(IllegalArgumentException.class, () -> ImageDecoder.from(options("--region", "1,2,3"), "circles", params));
+        assertThrows(IllegalArgumentException.class, () -> ImageDecoder.from(options("--region", "1,2,0,4"), "circles", params));
+    }
+
+    private static Options options(String... args) {
+        return new Options(args, 0);
+    }
+
+    private static void assertSourcePixels(BufferedImage image, int x0, int y0, int step) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(rgb(x0 + x * step, y0 + y * step), image.getRGB(x, y) & 0xFFFFFF, "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    private static int rgb(int x, int y) {
+        return x << 16 | y << 8 | 0x55;
+    }
+
+    private static byte[] png() throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, rgb(x, y));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
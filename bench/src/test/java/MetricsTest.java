@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+
+    @Test
+    void everyValueFallsIntoTheBucketThatBoundsIt() {
+        int previous = 0;
+        for (long micros = 0; micros < 200_000; micros++) {
+            assertBucket(micros);
+            int bucket = Metrics.StageStats.bucket(micros);
+            assertTrue(bucket == previous || bucket == previous + 1, "buckets skipped at " + micros);
+            previous = bucket;
+        }
+        for (int shift = 17; shift < 42; shift++) {
+            long power = 1L << shift;
+            assertBucket(power - 1);
+            assertBucket(power);
+            assertBucket(power + power / 3);
+        }
+    }
+
+    @Test
+    void bucketsAreAtMostAQuarterWide() {
+        for (int bucket = Metrics.StageStats.bucket(4); bucket < Metrics.StageStats.bucket(1L << 41); bucket++) {
+            long lower = Metrics.StageStats.upperBound(bucket - 1);
+            long upper = Metrics.StageStats.upperBound(bucket);
+            assertTrue(upper > lower, "empty bucket " + bucket);
+            assertTrue(upper - lower <= lower / 4, "bucket " + bucket + " is " + lower + ".." + upper);
+        }
+    }
+
+    @Test
+    void outOfRangeValuesAreClamped() {
+        assertEquals(0, Metrics.StageStats.bucket(-5));
+        int last = Metrics.StageStats.bucket(Long.MAX_VALUE);
+        assertEquals(last, Metrics.StageStats.bucket(1L << 50));
+        assertTrue(last > Metrics.StageStats.bucket(1L << 41));
+    }
+
+    @Test
+    void quantilesAreUpperBucketBounds() {
+        Metrics.StageStats stats = new Metrics.StageStats("test");
+        assertEquals(0.0, stats.quantileMillis(0.5), 0);
+        for (int i = 0; i < 90; i++) {
+            stats.record(1_000_000, 0);
+        }
+        for (int i = 0; i < 10; i++) {
+            stats.record(100_000_000, 0);
+        }
+        double p50 = stats.quantileMillis(0.5);
+        double p90 = stats.quantileMillis(0.9);
+        double p99 = stats.quantileMillis(0.99);
+        assertTrue(p50 >= 1 && p50 <= 1.25, "p50 " + p50);
+        assertEquals(p50, p90, 0);
+        assertTrue(p99 >= 100 && p99 <= 125, "p99 " + p99);
+    }
+
+    @Test
+    void spansAreOnlyRecordedWhenEnabled() {
+        boolean enabled = Metrics.isEnabled();
+        try {
+            Metrics.setEnabled(false);
+            Metrics.begin("metrics-test-off").end();
+            Metrics.setEnabled(true);
+            Metrics.Span span = Metrics.begin("metrics-test-on");
+            span.end();
+        } finally {
+            Metrics.setEnabled(enabled);
+        }
+        String json = Metrics.toJson();
+        assertFalse(json.contains("metrics-test-off"), json);
+        assertTrue(json.contains("\"metrics-test-on\":{\"count\":1,"), json);
+    }
+
+    private static void assertBucket(long micros) {
+        int bucket = Metrics.StageStats.bucket(micros);
+        assertTrue(micros < Metrics.StageStats.upperBound(bucket), micros + " above bucket " + bucket);
+        if (bucket > 0) {
+            assertTrue(micros >= Metrics.StageStats.upperBound(bucket - 1), micros + " below bucket " + bucket);
+        }
+    }
+}
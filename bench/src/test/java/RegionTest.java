@@ -0,0 +1,157 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionTest {
+
+    @Test
+    void scanOrderPixelsExtendTheLastRun() {
+        Region region = new Region();
+        // rows 2 and 3 are split by a gap at x = 7
+        for (int x = 4; x <= 9; x++) {
+            region.add(x, 2, 0xFF000000, false);
+        }
+        for (int x = 5; x <= 10; x++) {
+            if (x != 7) {
+                region.add(x, 3, 0xFF000000, false);
+            }
+        }
+        region.trimToSize();
+
+        assertEquals(3, region.runCount());
+        assertRun(region, 0, 2, 4, 9);
+        assertRun(region, 1, 3, 5, 6);
+        assertRun(region, 2, 3, 8, 10);
+        assertEquals(11, region.size());
+    }
+
+    @Test
+    void outOfOrderPixelsStartNewRuns() {
+        Region region = new Region();
+        region.add(5, 1, 0, false);
+        region.add(3, 1, 0, false);
+        region.add(4, 1, 0, false);
+        region.add(6, 0, 0, false);
+
+        // 4 continues the run of 3, 5 and 4 are not merged afterwards
+        assertEquals(3, region.runCount());
+        assertRun(region, 0, 1, 5, 5);
+        assertRun(region, 1, 1, 3, 4);
+        assertRun(region, 2, 0, 6, 6);
+        assertEquals(4, region.size());
+    }
+
+    @Test
+    void runsCoverExactlyTheAddedPixels() {
+        Random random = new Random(9);
+        for (int round = 0; round < 100; round++) {
+            int width = 1 + random.nextInt(100);
+            int height = 1 + random.nextInt(30);
+            boolean[] pixels = new boolean[width * height];
+            Region region = new Region();
+            int area = 0, runs = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (random.nextInt(3) != 0) {
+                        pixels[y * width + x] = true;
+                        region.add(x, y, 0, false);
+                        area++;
+                        if (x == 0 || !pixels[y * width + x - 1]) {
+                            runs++;
+                        }
+                    }
+                }
+            }
+            region.trimToSize();
+
+            assertEquals(area, region.size());
+            assertEquals(runs, region.runCount());
+            boolean[] covered = new boolean[width * height];
+            int runArea = 0;
+            for (int run = 0; run < region.runCount(); run++) {
+                assertTrue(region.runStartX(run) <= region.runEndX(run));
+                for (int x = region.runStartX(run); x <= region.runEndX(run); x++) {
+                    int i = region.runY(run) * width + x;
+                    assertTrue(pixels[i], "pixel " + i + " was not added");
+                    covered[i] = true;
+                    runArea++;
+                }
+            }
+            assertEquals(area, runArea);
+            for (int i = 0; i < pixels.length; i++) {
+                assertEquals(pixels[i], covered[i], "pixel " + i);
+            }
+        }
+    }
+
+    @Test
+    void statisticsFollowTheAddedPixels() {
+        Region region = new Region();
+        region.add(2, 1, 0xFF102030, true);
+        region.add(3, 1, 0xFF304050, false);
+        region.add(8, 4, 0xFF506070, true);
+
+        assertEquals(3, region.size());
+        assertEquals(2, region.getEdgeCount());
+        assertEquals(13 / 3.0, region.centroidX(), 1e-12);
+        assertEquals(2.0, region.centroidY(), 1e-12);
+        assertEquals(0xFF304050, region.meanRgb());
+        assertEquals(2, region.getMinX());
+        assertEquals(1, region.getMinY());
+        assertEquals(8, region.getMaxX());
+        assertEquals(4, region.getMaxY());
+    }
+
+    @Test
+    void emptyRegion() {
+        Region region = new Region();
+        region.trimToSize();
+        assertEquals(0, region.size());
+        assertEquals(0, region.runCount());
+        assertEquals(0.0, region.centroidX(), 0);
+        assertEquals(0, region.meanRgb());
+    }
+
+    @Test
+    void similarColorRegionsWithinTheAreaRange() {
+        // a 5x5 red and a 3x3 blue square next to each other on a transparent image
+        BufferedImage image = new BufferedImage(12, 8, BufferedImage.TYPE_INT_ARGB);
+        fill(image, 1, 1, 5, 0xFFC00000);
+        fill(image, 6, 2, 3, 0xFF0000C0);
+
+        List<Region> regions = Main.detectSimilarColorRegion(image, 8, 26);
+        assertEquals(2, regions.size());
+        Region red = regions.get(0);
+        assertEquals(25, red.size());
+        assertEquals(5, red.runCount());
+        assertRun(red, 0, 1, 1, 5);
+        assertEquals(0xFFC00000, red.meanRgb());
+        // the column next to the blue square, diagonals included; transparent neighbours are no edges
+        assertEquals(5, red.getEdgeCount());
+        assertEquals(9, regions.get(1).size());
+        assertEquals(3, regions.get(1).getEdgeCount());
+
+        // the limits are exclusive
+        assertEquals(1, Main.detectSimilarColorRegion(image, 9, 26).size());
+        assertEquals(0, Main.detectSimilarColorRegion(image, 9, 25).size());
+    }
+
+    private static void fill(BufferedImage image, int x0, int y0, int size, int argb) {
+        for (int y = y0; y < y0 + size; y++) {
+            for (int x = x0; x < x0 + size; x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+    }
+
+    private static void assertRun(Region region, int run, int y, int startX, int endX) {
+        assertEquals(y, region.runY(run), "y of run " + run);
+        assertEquals(startX, region.runStartX(run), "first x of run " + run);
+        assertEquals(endX, region.runEndX(run), "last x of run " + run);
+    }
+}
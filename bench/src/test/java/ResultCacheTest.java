@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTest {
+    private static final int CAPACITY = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void ringWrapsAndEvictsTheOldestEntries() throws IOException {
+        Path file = dir.resolve("results.cache");
+        int entries = 200;
+        try (ResultCache cache = new ResultCache(file, CAPACITY)) {
+            for (int i = 0; i < entries; i++) {
+                cache.put(key(i), result(i), CircleParams.DEFAULT);
+                // the entry just written always survives
+                assertResult(i, cache.get(key(i)));
+            }
+            assertTrue(cache.size() < entries, "the cache never wrapped");
+            assertNull(cache.get(key(0)), "the oldest entry was not evicted");
+            assertCachedAreTheNewest(cache, entries);
+        }
+
+        // The index is rebuilt from the wrapped ring
+        try (ResultCache cache = new ResultCache(file, CAPACITY)) {
+            assertCachedAreTheNewest(cache, entries);
+        }
+    }
+
+    @Test
+    void entriesSurviveReopening() throws IOException {
+        Path file = dir.resolve("results.cache");
+        try (ResultCache cache = new ResultCache(file, CAPACITY)) {
+            cache.put(key(1), result(1), CircleParams.DEFAULT);
+            cache.put(key(2), result(2), CircleParams.DEFAULT);
+            // the same key is stored once
+            cache.put(key(2), result(3), CircleParams.DEFAULT);
+        }
+        try (ResultCache cache = new ResultCache(file, CAPACITY)) {
+            assertEquals(2, cache.size());
+            assertResult(1, cache.get(key(1)));
+            assertResult(2, cache.get(key(2)));
+            assertNull(cache.get(key(3)));
+            assertEquals(2, cache.getHits());
+            assertEquals(1, cache.getMisses());
+        }
+    }
+
+    @Test
+    void otherCapacityOrDamagedPositionsStartEmpty() throws IOException {
+        Path file = dir.resolve("results.cache");
+        try (ResultCache cache = new ResultCache(file, CAPACITY)) {
+            cache.put(key(1), result(1), CircleParams.DEFAULT);
+        }
+        try (ResultCache cache = new ResultCache(file, 2 * CAPACITY)) {
+            assertEquals(0, cache.size());
+            cache.put(key(1), result(1), CircleParams.DEFAULT);
+        }
+
+        // write position in the middle of the first entry
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 7), 20);
+        }
+        try (ResultCache cache = new ResultCache(file, 2 * CAPACITY)) {
+            assertEquals(0, cache.size());
+            assertNull(cache.get(key(1)));
+        }
+    }
+
+    @Test
+    void keysDependOnTheDetectorsOwnParameters() {
+        byte[] image = {1, 2, 3};
+        byte[] naive = ResultCache.key(image, "naive", RegionParams.NAIVE);
+        assertArrayEquals(naive, ResultCache.key(image, "naive", new RegionParams(RegionParams.NAIVE.getReferenceRgb(),
+                80, false, false, 10, 150)));
+        assertFalse(Arrays.equals(naive, ResultCache.key(image, "naive", new RegionParams(
+                RegionParams.NAIVE.getReferenceRgb(), 80, false, false, 10, 200))));
+        assertFalse(Arrays.equals(naive, ResultCache.key(image, "background", RegionParams.NAIVE)));
+        assertFalse(Arrays.equals(ResultCache.key(image, "edges", EdgeParams.DEFAULT),
+                ResultCache.key(image, "edges", new EdgeParams(7, 30))));
+    }
+
+    // Only a suffix of the entries is left, each with its own result
+    private static void assertCachedAreTheNewest(ResultCache cache, int entries) {
+        int cached = cache.size();
+        assertTrue(cached > 0);
+        for (int i = 0; i < entries; i++) {
+            DetectionResult result = cache.get(key(i));
+            if (i < entries - cached) {
+                assertNull(result, "entry " + i + " should have been evicted");
+            } else {
+                assertResult(i, result);
+            }
+        }
+    }
+
+    private static void assertResult(int i, DetectionResult result) {
+        assertNotNull(result, "entry " + i + " is missing");
+        assertEquals(100 + i, result.getWidth());
+        assertEquals(i % 5, result.count());
+        assertEquals(i, result.getRejected());
+    }
+
+    private static byte[] key(int i) {
+        return ResultCache.key(new byte[]{(byte) i, (byte) (i >> 8)}, "circles", CircleParams.DEFAULT);
+    }
+
+    // Results of different sizes, so entries do not line up with the end of the ring
+    private static DetectionResult result(int i) {
+        DetectionResult result = new DetectionResult("circles", 100 + i, 50);
+        for (int n = 0; n < i % 5; n++) {
+            result.add(new DetectionResult.DetectedObject(n, i, 10, 314));
+        }
+        result.reject(i);
+        return result;
+    }
+}
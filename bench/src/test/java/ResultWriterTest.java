@@ -0,0 +1,163 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Rectangle;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultWriterTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void binaryRecordsRoundTrip() throws IOException {
+        Path file = dir.resolve("results.bin");
+        ImageDecoder decoder = new ImageDecoder(2, new Rectangle(10, 20, 300, 400));
+        try (ResultWriter writer = ResultWriter.open(file, true, false)) {
+            writer.write(record("a.png", CircleParams.DEFAULT, decoder, 2));
+            writer.write(record("b.png", RegionParams.BACKGROUND, ImageDecoder.FULL, 0));
+            writer.write(record("c.png", EdgeParams.DEFAULT, ImageDecoder.FULL, 1));
+            writer.write(record("d.png", "custom", ImageDecoder.FULL, 1));
+        }
+
+        List<ResultRecord> records = readBinary(file);
+        assertEquals(4, records.size());
+        ResultRecord a = records.get(0);
+        assertEquals("a.png", a.getFileName());
+        assertEquals(CircleParams.DEFAULT.toJson(), ResultRecord.paramsJson(a.getParams()));
+        assertEquals(2, a.getDecoder().getSubsampling());
+        assertEquals(new Rectangle(10, 20, 300, 400), a.getDecoder().getRegion());
+        assertEquals(2, a.getResult().count());
+        assertEquals(7, a.getResult().getRejected());
+        assertEquals(1.5, a.getResult().getObjects().get(1).getX(), 1e-6);
+        assertEquals(1000, a.getDecodeNanos());
+
+        assertEquals(RegionParams.BACKGROUND.toJson(), ResultRecord.paramsJson(records.get(1).getParams()));
+        assertTrue(records.get(1).getDecoder().isFull());
+        assertEquals(EdgeParams.DEFAULT, records.get(2).getParams());
+        assertEquals("custom", records.get(3).getParams());
+    }
+
+    @Test
+    void binaryResumeCutsOffThePartialLastRecord() throws IOException {
+        Path file = dir.resolve("results.bin");
+        try (ResultWriter writer = ResultWriter.open(file, true, false)) {
+            writer.write(record("a.png", CircleParams.DEFAULT, ImageDecoder.FULL, 1));
+            writer.write(record("b.png", CircleParams.DEFAULT, ImageDecoder.FULL, 2));
+        }
+        long valid = Files.size(file);
+        // a crash in the middle of the third record
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND))) {
+            out.writeInt(500);
+            out.writeUTF("c.png");
+        }
+
+        assertEquals(2, readBinary(file).size());
+        try (ResultWriter writer = ResultWriter.open(file, true, true)) {
+            assertEquals(valid, Files.size(file));
+            assertEquals(2, writer.completedCount());
+            assertTrue(writer.isCompleted("a.png"));
+            assertTrue(writer.isCompleted("b.png"));
+            assertFalse(writer.isCompleted("c.png"));
+            writer.write(record("c.png", CircleParams.DEFAULT, ImageDecoder.FULL, 3));
+        }
+        List<ResultRecord> records = readBinary(file);
+        assertEquals(3, records.size());
+        assertEquals("c.png", records.get(2).getFileName());
+        assertEquals(3, records.get(2).getResult().count());
+    }
+
+    @Test
+    void damagedBinaryFilesFailWithAnIOException() throws IOException {
+        Path file = dir.resolve("results.bin");
+        try (ResultWriter writer = ResultWriter.open(file, true, false)) {
+            writer.write(record("a.png", CircleParams.DEFAULT, ImageDecoder.FULL, 1));
+        }
+        byte[] bytes = Files.readAllBytes(file);
+
+        // negative record length
+        bytes[4] = (byte) 0xFF;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> readBinary(file));
+        assertThrows(IOException.class, () -> ResultWriter.open(file, true, true));
+
+        // record length shorter than its content
+        bytes[4] = 0;
+        bytes[5] = 0;
+        bytes[6] = 0;
+        bytes[7] = 9;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> readBinary(file));
+
+        // a results file of an older format version
+        bytes[3] = 1;
+        Files.write(file, bytes);
+        IOException e = assertThrows(IOException.class, () -> readBinary(file));
+        assertTrue(e.getMessage().contains("version"), e.getMessage());
+    }
+
+    @Test
+    void jsonResumeCutsOffThePartialLastLine() throws IOException {
+        Path file = dir.resolve("results.jsonl");
+        try (ResultWriter writer = ResultWriter.open(file, false, false)) {
+            writer.write(record("a \"1\".png", RegionParams.NAIVE, ImageDecoder.FULL, 1));
+            writer.write(record("b.png", CircleParams.DEFAULT, new ImageDecoder(3, null), 2));
+        }
+        long valid = Files.size(file);
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            out.write("{\"file\":\"c.png\",\"par".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ResultWriter writer = ResultWriter.open(file, false, true)) {
+            assertEquals(valid, Files.size(file));
+            assertEquals(2, writer.completedCount());
+            assertTrue(writer.isCompleted("a \"1\".png"));
+            assertTrue(writer.isCompleted("b.png"));
+            writer.write(record("c.png", CircleParams.DEFAULT, ImageDecoder.FULL, 0));
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).contains("\"params\":" + RegionParams.NAIVE.toJson()), lines.get(0));
+        assertTrue(lines.get(1).contains("\"subsample\":3,"), lines.get(1));
+        assertTrue(lines.get(2).startsWith("{\"file\":\"c.png\""), lines.get(2));
+    }
+
+    @Test
+    void withoutResumeTheFileIsOverwritten() throws IOException {
+        Path file = dir.resolve("results.jsonl");
+        try (ResultWriter writer = ResultWriter.open(file, false, false)) {
+            writer.write(record("a.png", CircleParams.DEFAULT, ImageDecoder.FULL, 1));
+        }
+        try (ResultWriter writer = ResultWriter.open(file, false, false)) {
+            assertEquals(0, writer.completedCount());
+        }
+        assertEquals(0, Files.size(file));
+    }
+
+    private static List<ResultRecord> readBinary(Path file) throws IOException {
+        List<ResultRecord> records = new ArrayList<>();
+        ResultWriter.readBinary(file, records::add);
+        return records;
+    }
+
+    private static ResultRecord record(String fileName, Object params, ImageDecoder decoder, int count) {
+        DetectionResult result = new DetectionResult("circles", 640, 480);
+        for (int i = 0; i < count; i++) {
+            result.add(new DetectionResult.DetectedObject(0.5 + i, 2, 10, 314));
+        }
+        result.reject(7);
+        return new ResultRecord(fileName, params, decoder, result, 1000, 2000, 3000);
+    }
+}
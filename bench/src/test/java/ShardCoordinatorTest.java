@@ -0,0 +1,188 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Drives a coordinator without local workers through fake workers speaking its protocol.
+ */
+class ShardCoordinatorTest {
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void fileOfADisconnectedWorkerIsReassigned() throws Exception {
+        Path resultsFile = dir.resolve("results.bin");
+        try (ServerSocket server = server(); ResultWriter results = ResultWriter.open(resultsFile, true, false)) {
+            Thread coordinator = start(new ShardCoordinator(server, Arrays.asList("/images/a.png"), 3, 0, results));
+
+            try (FakeWorker first = new FakeWorker(server)) {
+                assertEquals("/images/a.png", first.request());
+            }
+            // the file goes back to the queue once the first connection is gone
+            try (FakeWorker second = new FakeWorker(server)) {
+                assertEquals("/images/a.png", second.request());
+                second.result("a.png");
+                assertNull(second.request());
+            }
+            finish(coordinator);
+        }
+        assertEquals(Collections.singletonList("a.png"), fileNames(resultsFile));
+    }
+
+    @Test
+    void remainingFilesAreServedAfterADisconnect() throws Exception {
+        Path resultsFile = dir.resolve("results.bin");
+        List<String> files = Arrays.asList("/images/a.png", "/images/b.png", "/images/c.png");
+        try (ServerSocket server = server(); ResultWriter results = ResultWriter.open(resultsFile, true, false)) {
+            Thread coordinator = start(new ShardCoordinator(server, files, 3, 0, results));
+
+            String lost;
+            try (FakeWorker first = new FakeWorker(server)) {
+                lost = first.request();
+            }
+            List<String> served = new ArrayList<>();
+            try (FakeWorker second = new FakeWorker(server)) {
+                for (String file = second.request(); file != null; file = second.request()) {
+                    served.add(file);
+                    second.result(file.substring(file.lastIndexOf('/') + 1));
+                }
+            }
+            finish(coordinator);
+
+            assertEquals(3, served.size());
+            assertEquals(files, sorted(served));
+            assertEquals("/images/a.png", lost);
+        }
+        assertEquals(Arrays.asList("a.png", "b.png", "c.png"), sorted(fileNames(resultsFile)));
+    }
+
+    @Test
+    void fileIsGivenUpAfterMaxAttempts() throws Exception {
+        Path resultsFile = dir.resolve("results.bin");
+        try (ServerSocket server = server(); ResultWriter results = ResultWriter.open(resultsFile, true, false)) {
+            Thread coordinator = start(new ShardCoordinator(server, Arrays.asList("/images/a.png"), 2, 0, results));
+
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try (FakeWorker worker = new FakeWorker(server)) {
+                    assertEquals("/images/a.png", worker.request());
+                }
+            }
+            // both attempts are used up, so the run ends without a result
+            finish(coordinator);
+        }
+        assertEquals(Collections.emptyList(), fileNames(resultsFile));
+    }
+
+    @Test
+    void failedFilesAreNotReassigned() throws Exception {
+        Path resultsFile = dir.resolve("results.bin");
+        try (ServerSocket server = server(); ResultWriter results = ResultWriter.open(resultsFile, true, false)) {
+            Thread coordinator = start(new ShardCoordinator(server, Arrays.asList("/images/a.png"), 3, 0, results));
+
+            try (FakeWorker worker = new FakeWorker(server)) {
+                assertEquals("/images/a.png", worker.request());
+                worker.failed();
+                assertNull(worker.request());
+            }
+            finish(coordinator);
+        }
+        assertEquals(Collections.emptyList(), fileNames(resultsFile));
+    }
+
+    private static ServerSocket server() throws IOException {
+        return new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    // Runs the coordinator without local workers until all files are finished
+    private static Thread start(ShardCoordinator coordinator) {
+        Thread thread = new Thread(() -> {
+            try {
+                coordinator.run(Collections.emptyList(), 0, 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "test-coordinator");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void finish(Thread coordinator) throws InterruptedException {
+        coordinator.join(TIMEOUT_MILLIS);
+        assertFalse(coordinator.isAlive(), "the coordinator did not finish");
+    }
+
+    private static List<String> fileNames(Path resultsFile) throws IOException {
+        List<String> names = new ArrayList<>();
+        ResultWriter.readBinary(resultsFile, record -> names.add(record.getFileName()));
+        return names;
+    }
+
+    private static List<String> sorted(List<String> values) {
+        List<String> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    // One worker thread's connection, see ShardWorker
+    private static class FakeWorker implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        FakeWorker(ServerSocket server) throws IOException {
+            socket = new Socket(server.getInetAddress(), server.getLocalPort());
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(ShardCoordinator.PROTOCOL_MAGIC);
+        }
+
+        // The next file, or null when the coordinator is done
+        String request() throws IOException {
+            out.writeByte(ShardCoordinator.REQUEST);
+            out.flush();
+            int message = in.readUnsignedByte();
+            if (message == ShardCoordinator.DONE) {
+                return null;
+            }
+            assertEquals(ShardCoordinator.FILE, message);
+            return in.readUTF();
+        }
+
+        void result(String fileName) throws IOException {
+            out.writeByte(ShardCoordinator.RESULT);
+            new ResultRecord(fileName, RegionParams.NAIVE, ImageDecoder.FULL, new DetectionResult("naive", 10, 10),
+                    0, 0, 0).writeTo(out);
+        }
+
+        void failed() throws IOException {
+            out.writeByte(ShardCoordinator.FAILED);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
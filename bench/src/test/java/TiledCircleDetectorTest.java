@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Merging of the circles that neighbouring tiles or nearby pyramid candidates both report.
+ */
+class TiledCircleDetectorTest {
+
+    @Test
+    void duplicateAcrossATileBorderKeepsTheCircleFarthestFromItsBorder() {
+        // the same circle seen near the border of two tiles, the right tile saw it with more context
+        TiledCircleDetector.Candidate left = candidate(1022, 500, 3);
+        TiledCircleDetector.Candidate right = candidate(1025, 499, 7);
+        TiledCircleDetector.Candidate other = candidate(1100, 500, 50);
+
+        List<TiledCircleDetector.Candidate> kept = TiledCircleDetector.merge(Arrays.asList(left, right, other), 20);
+        assertEquals(2, kept.size());
+        assertSame(right, kept.get(0));
+        assertSame(other, kept.get(1));
+    }
+
+    @Test
+    void refinedPyramidCirclesKeepTheStrongerCandidate() {
+        // two coarse candidates refined onto the same circle, the priority is minus the Hough rank
+        List<TiledCircleDetector.Candidate> refined = Arrays.asList(
+                candidate(200.5, 100, 0), candidate(60, 60, -1), candidate(201, 101.5, -2));
+        List<TiledCircleDetector.Candidate> kept = TiledCircleDetector.merge(refined, 20);
+        assertEquals(2, kept.size());
+        assertSame(refined.get(1), kept.get(0));
+        assertSame(refined.get(0), kept.get(1));
+    }
+
+    @Test
+    void circlesAtLeastMinDistApartAreKept() {
+        // on both sides of a grid cell border, and exactly minDist apart
+        List<TiledCircleDetector.Candidate> candidates = Arrays.asList(
+                candidate(19, 5, 1), candidate(39, 5, 2), candidate(19, 25, 3));
+        assertEquals(3, TiledCircleDetector.merge(candidates, 20).size());
+        // the corner circle is close to both others once minDist grows
+        assertEquals(2, TiledCircleDetector.merge(candidates, 20.1).size());
+    }
+
+    @Test
+    void mergeMatchesPairwiseComparison() {
+        Random random = new Random(13);
+        for (int round = 0; round < 100; round++) {
+            double minDist = 5 + random.nextInt(30);
+            List<TiledCircleDetector.Candidate> candidates = new ArrayList<>();
+            int count = random.nextInt(300);
+            for (int i = 0; i < count; i++) {
+                candidates.add(candidate(random.nextDouble() * 400, random.nextDouble() * 300, random.nextDouble()));
+            }
+            assertEquals(pairwise(candidates, minDist), TiledCircleDetector.merge(candidates, minDist));
+        }
+    }
+
+    @Test
+    void keptCirclesAreInScanOrder() {
+        List<TiledCircleDetector.Candidate> kept = TiledCircleDetector.merge(Arrays.asList(
+                candidate(50, 80, 1), candidate(90, 10, 2), candidate(10, 80, 3), candidate(10, 10, 4)), 5);
+        double[][] expected = {{10, 10}, {90, 10}, {10, 80}, {50, 80}};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], kept.get(i).x, 0);
+            assertEquals(expected[i][1], kept.get(i).y, 0);
+        }
+    }
+
+    // Keeps every circle, highest priority first, that is not within minDist of a kept one
+    private static List<TiledCircleDetector.Candidate> pairwise(List<TiledCircleDetector.Candidate> candidates,
+                                                                double minDist) {
+        List<TiledCircleDetector.Candidate> sorted = new ArrayList<>(candidates);
+        Collections.sort(sorted, (a, b) -> Double.compare(b.priority, a.priority));
+        List<TiledCircleDetector.Candidate> kept = new ArrayList<>();
+        for (TiledCircleDetector.Candidate candidate : sorted) {
+            boolean duplicate = false;
+            for (TiledCircleDetector.Candidate other : kept) {
+                if (Math.hypot(other.x - candidate.x, other.y - candidate.y) < minDist) {
+                    duplicate = true;
+                }
+            }
+            if (!duplicate) {
+                kept.add(candidate);
+            }
+        }
+        Collections.sort(kept, (a, b) -> a.y != b.y ? Double.compare(a.y, b.y) : Double.compare(a.x, b.x));
+        return kept;
+    }
+
+    private static TiledCircleDetector.Candidate candidate(double x, double y, double priority) {
+        return new TiledCircleDetector.Candidate(x, y, 10, 314, priority);
+    }
+}
@@ -0,0 +1,110 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Renders detection results onto images.
+ *
+ * Detection itself never touches output pixels, this is the optional second step for
+ * callers that want to look at the result. Every {@link Detector} renders its own results
+ * with the drawing helpers here. Annotations are drawn in place where the detector's output
+ * is the input image, contours and edges return a new image.
+ */
+public class Annotator {
+    public static BufferedImage annotate(BufferedImage image, DetectionResult result, Object params) {
+        return annotate(new Preprocessed(image), result, params);
+    }
+
+    /**
+     * Annotates the preprocessed image with the detector that produced result, reusing the
+     * edge, mask and label images it already computed. params are the detector's own
+     * parameters it detected with. The image may be drawn into, so this is the last use of
+     * the preprocessed image.
+     */
+    public static BufferedImage annotate(Preprocessed preprocessed, DetectionResult result, Object params) {
+        return Detectors.annotate(result.getDetector(), preprocessed, result, params);
+    }
+
+    /**
+     * Outlines every object with a circle, of its area if it has no radius. The default for
+     * detectors that do not render their results themselves.
+     */
+    public static BufferedImage drawObjects(Preprocessed preprocessed, DetectionResult result) {
+        BufferedImage image = preprocessed.getImage();
+        PixelView view = PixelView.of(image);
+        for (DetectionResult.DetectedObject object : result.getObjects()) {
+            double radius = object.getRadius() > 0 ? object.getRadius() : Math.sqrt(object.getArea() / Math.PI);
+            view.drawCircle((int) object.getX(), (int) object.getY(), (int) Math.max(1, radius), Main.BLACK);
+        }
+        return image;
+    }
+
+    /* draw the circles found on the image */
+    static BufferedImage drawCircles(Preprocessed preprocessed, DetectionResult result, CircleParams params) {
+        BufferedImage image = preprocessed.getImage();
+        PixelView view = PixelView.of(image);
+        if (params.isDebugSamples()) {
+            // the mask is only needed to show what the verifier saw, take it before drawing
+            BitMask isObject = preprocessed.objectMask(params.getObjectRgb(), params.getMaxDelta());
+            CircleVerifier verifier = new CircleVerifier(isObject);
+            for (DetectionResult.DetectedObject circle : result.getObjects()) {
+                verifier.drawSamples(view, (int) circle.getX(), (int) circle.getY(), (int) circle.getRadius(),
+                        Main.GREEN, Main.RED);
+            }
+        }
+        for (DetectionResult.DetectedObject circle : result.getObjects()) {
+            view.drawCircle((int) circle.getX(), (int) circle.getY(), (int) circle.getRadius(), Main.BLACK);
+        }
+        return image;
+    }
+
+    static BufferedImage drawContours(Preprocessed preprocessed, EdgeParams params) {
+        List<MatOfPoint> contours = ContourDetector.findContours(preprocessed, params);
+        // draw on a color copy, the image Mat is shared and gray images need color for red
+        Mat mat = preprocessed.mat();
+        Mat colorMat = MatBridge.pooled("color", mat.rows(), mat.cols(), CvType.CV_8UC3);
+        if (mat.channels() == 1) {
+            Imgproc.cvtColor(mat, colorMat, Imgproc.COLOR_GRAY2BGR);
+        } else {
+            mat.copyTo(colorMat);
+        }
+        mat = colorMat;
+        Imgproc.drawContours(mat, contours, -1, new Scalar(0,0,255));
+//        for(int i=0; i< contours.size();i++){
+////            System.out.println(Imgproc.contourArea(contours.get(i)));
+//            Rect rect = Imgproc.boundingRect(contours.get(i));
+//            Imgproc.rectangle(mat, new Point(rect.x,rect.y), new Point(rect.x+rect.width,rect.y+rect.height),new Scalar(0,0,255));
+//        }
+        ContourDetector.releaseContours(contours);
+
+        /* convert back to buffered image */
+        return MatBridge.toBufferedImage(mat);
+    }
+
+    /**
+     * Paints the pixels whose label is accepted with objectArgb and everything else black.
+     * labels is the row-major label plane of the image, label 0 is the background.
+     */
+    static BufferedImage paintLabels(BufferedImage image, int[] labels, boolean[] accepted, boolean skipTransparent,
+                                     int objectArgb) {
+        PixelView view = PixelView.of(image);
+        int width = view.getWidth();
+        int height = view.getHeight();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // transparent pixel, this pixel doesn't display, skip
+                if (skipTransparent && view.get(x, y) == 0)
+                    continue;
+
+                view.set(x, y, accepted[labels[y * width + x]] ? objectArgb : Main.BLACK);
+            }
+        }
+
+        return image;
+    }
+}
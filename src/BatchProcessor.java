@@ -0,0 +1,246 @@
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs decode, detection and encode for every image of a directory on a worker pool.
+ * In count-only mode the annotation and encode steps are skipped and only the counts
+ * are printed. With a {@link ResultWriter} every result is appended to the results file
+ * as soon as its image is done, and images already in the file are skipped. With a
+ * {@link ResultCache} images whose content and detector settings were seen before are
+ * not detected again, and only decoded when their annotated image is missing or was drawn
+ * for other settings. Images are decoded with an {@link ImageDecoder}, so detection may
+ * run on a subsampled region of the source; results are recorded in source pixels.
+ *
+ * The directory is streamed instead of listed up front, and a semaphore caps how many
+ * files are queued or being processed at once, which bounds the number of decoded
+ * images held in memory.
+ */
+public class BatchProcessor {
+    private final int threads;
+    private final int maxInFlight;
+    private final String detector;
+    // the detector's own parameters, as recorded in the results
+    private final Object recordParams;
+    private final ImageDecoder decoder;
+    // recordParams for the decoded images
+    private final Object detectParams;
+    private final boolean countOnly;
+    // may be null
+    private final ResultWriter results;
+    // may be null
+    private final ResultCache cache;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger cacheHits = new AtomicInteger();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder detectNanos = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder pixels = new LongAdder();
+
+    /**
+     * params are the detector's own parameters, see {@link Detectors#params}.
+     */
+    public BatchProcessor(int threads, int maxInFlight, String detector, Object params, ImageDecoder decoder,
+                          boolean countOnly, ResultWriter results, ResultCache cache) {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.detector = detector;
+        this.recordParams = params;
+        this.decoder = decoder;
+        this.detectParams = decoder.scale(params);
+        this.countOnly = countOnly;
+        this.results = results;
+        this.cache = cache;
+    }
+
+    public void run(Path dir) throws IOException, InterruptedException {
+        // Workers free their pooled native Mats when the pool shuts down
+        ExecutorService pool = Executors.newFixedThreadPool(threads, MatBridge.releasingThreadFactory());
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long start = System.nanoTime();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                // Skip output file
+                if (path.toString().endsWith(Main.OUTPUT_SUFFIX) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                // Already in the results of an earlier, interrupted run
+                if (results != null && results.isCompleted(path.getFileName().toString())) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                inFlight.acquire();
+                pool.execute(() -> {
+                    try {
+                        write(process(path.toFile()));
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        printSummary(System.nanoTime() - start);
+    }
+
+    /**
+     * Decodes, detects and, unless counting only, annotates one image. Returns its record,
+     * or null if the image failed. The record is not written, see {@link #write(ResultRecord)}.
+     * Also used by {@link ShardWorker}, which sends the record to its coordinator instead.
+     */
+    ResultRecord process(File file) {
+        try {
+            System.out.println("Processing file " + file.getName());
+            long t0 = System.nanoTime();
+            byte[] bytes = null, key = null;
+            DetectionResult cached = null;
+            if (cache != null) {
+                bytes = Files.readAllBytes(file.toPath());
+                key = ResultCache.key(bytes, detector + decoder.cacheTag(), recordParams);
+                cached = cache.get(key);
+                if (cached != null) {
+                    cacheHits.incrementAndGet();
+                }
+                // Nothing left to do unless the annotated image has to be drawn again
+                if (cached != null && (countOnly || isAnnotatedFor(file, key))) {
+                    if (countOnly) {
+                        System.out.println(file.getName() + ": " + cached.count() + " objects (cached)");
+                    }
+                    processed.incrementAndGet();
+                    return new ResultRecord(file.getName(), recordParams, decoder,
+                            decoder.toSource(cached, decoder.sourceBounds(bytes)), 0, 0, 0);
+                }
+            }
+            BufferedImage img;
+            Metrics.Span span = Metrics.begin("decode");
+            try {
+                img = bytes != null ? decoder.read(bytes) : decoder.read(file);
+            } finally {
+                span.end();
+            }
+            long t1 = System.nanoTime();
+            decodeNanos.add(t1 - t0);
+            if (img == null) {
+                System.err.println("image is null: " + file.getName());
+                failed.incrementAndGet();
+                return null;
+            }
+            pixels.add((long) img.getWidth() * img.getHeight());
+            Rectangle bounds = ImageDecoder.sourceBounds(img);
+            // detection and annotation share the grayscale, blurred and mask images
+            Preprocessed preprocessed = new Preprocessed(img);
+
+            DetectionResult result = cached;
+            if (result == null) {
+                result = Main.count(detector, preprocessed, detectParams);
+                if (cache != null) {
+                    cache.put(key, result, recordParams);
+                }
+            }
+            long t2 = System.nanoTime();
+            detectNanos.add(t2 - t1);
+
+            long t3 = t2;
+            if (countOnly) {
+                System.out.println(file.getName() + ": " + result.count() + " objects");
+            } else {
+                span = Metrics.begin("annotate");
+                try {
+                    img = Annotator.annotate(preprocessed, result, detectParams);
+                } finally {
+                    span.end();
+                }
+                span = Metrics.begin("encode");
+                try {
+                    writeAnnotated(file, img, key);
+                } finally {
+                    span.end();
+                }
+                t3 = System.nanoTime();
+                encodeNanos.add(t3 - t2);
+            }
+            processed.incrementAndGet();
+            return new ResultRecord(file.getName(), recordParams, decoder, decoder.toSource(result, bounds), t1 - t0, t2 - t1,
+                    t3 - t2);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to process " + file.getName() + ": " + e);
+            failed.incrementAndGet();
+            return null;
+        }
+    }
+
+    // true if the annotated image of file exists and was drawn for the cache key
+    private static boolean isAnnotatedFor(File file, byte[] key) throws IOException {
+        File keyFile = Main.keyFileFor(file);
+        return Main.outputFileFor(file).exists() && keyFile.exists()
+                && Arrays.equals(key, Files.readAllBytes(keyFile.toPath()));
+    }
+
+    /**
+     * Writes the annotated image of file and, with a cache, the key it was drawn for next to
+     * it. The old key is removed first, so an image drawn without one is never taken as
+     * up to date.
+     */
+    private static void writeAnnotated(File file, BufferedImage annotated, byte[] key) throws IOException {
+        Path keyFile = Main.keyFileFor(file).toPath();
+        Files.deleteIfExists(keyFile);
+        ImageIO.write(annotated, "jpg", Main.outputFileFor(file));
+        if (key != null) {
+            Files.write(keyFile, key);
+        }
+    }
+
+    // Appends the record of a processed image to the results file, if there is one
+    private void write(ResultRecord record) {
+        if (record == null || results == null) {
+            return;
+        }
+        try {
+            results.write(record);
+        } catch (IOException e) {
+            System.err.println("Failed to write the result of " + record.getFileName() + ": " + e);
+            // the image is not in the results file, count it as failed
+            processed.decrementAndGet();
+            failed.incrementAndGet();
+        }
+    }
+
+    private void printSummary(long elapsedNanos) {
+        int done = processed.get();
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("Processed %d images (%d failed, %d skipped) in %.2f s with %d threads",
+                done, failed.get(), skipped.get(), seconds, threads));
+        if (done == 0) {
+            return;
+        }
+        if (cache != null) {
+            System.out.println(String.format("Cache: %d hits, %d entries", cacheHits.get(), cache.size()));
+        }
+        System.out.println(String.format("Throughput: %.2f images/s, %.2f MP/s",
+                done / seconds, pixels.sum() / 1e6 / seconds));
+        System.out.println(String.format("Mean per image: decode %.1f ms, detect %.1f ms, annotate and encode %.1f ms",
+                decodeNanos.sum() / 1e6 / done, detectNanos.sum() / 1e6 / done, encodeNanos.sum() / 1e6 / done));
+    }
+}
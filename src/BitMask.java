@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+/**
+ * Row-major pixel mask with one bit per pixel.
+ *
+ * Pixels are addressed like the packed ARGB arrays, by index y * width + x, and bit i is
+ * stored in bit (i % 64) of word i / 64. A mask takes an eighth of the memory of a
+ * boolean[] of the same size, and counting or scanning runs of background pixels looks at
+ * 64 pixels per step.
+ */
+public class BitMask {
+    private final int width;
+    private final int height;
+    private final int size;
+    private final long[] words;
+
+    public BitMask(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid mask size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.size = width * height;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Number of pixels, set or not
+    public int size() {
+        return size;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public boolean get(int x, int y) {
+        return get(y * width + x);
+    }
+
+    public void set(int index) {
+        words[index >>> 6] |= 1L << index;
+    }
+
+    public void set(int x, int y) {
+        set(y * width + x);
+    }
+
+    public void clear(int index) {
+        words[index >>> 6] &= ~(1L << index);
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Sets the pixels at index, index + 1, ... for the low count bits of bits that are 1.
+     * Pixels of 0 bits are left as they are. count is at most 64.
+     */
+    public void setBits(int index, long bits, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (count < 64) {
+            bits &= (1L << count) - 1;
+        }
+        int word = index >>> 6;
+        int shift = index & 63;
+        words[word] |= bits << shift;
+        // the bits that did not fit spill into the next word
+        if (shift != 0 && shift + count > 64) {
+            words[word + 1] |= bits >>> (64 - shift);
+        }
+    }
+
+    /**
+     * Sets the pixels from index on whose byte in values is not 0, for the first length
+     * bytes. This packs 8-bit masks as produced by OpenCV.
+     */
+    public void setNonZero(byte[] values, int length, int index) {
+        for (int start = 0; start < length; start += 64) {
+            int count = Math.min(64, length - start);
+            long bits = 0;
+            for (int i = 0; i < count; i++) {
+                bits |= (values[start + i] != 0 ? 1L : 0L) << i;
+            }
+            setBits(index + start, bits, count);
+        }
+    }
+
+    // Number of set pixels
+    public int count() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Number of set pixels with from <= index < to.
+     */
+    public int count(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            return Long.bitCount(words[first] & firstMask & lastMask);
+        }
+        int count = Long.bitCount(words[first] & firstMask);
+        for (int i = first + 1; i < last; i++) {
+            count += Long.bitCount(words[i]);
+        }
+        return count + Long.bitCount(words[last] & lastMask);
+    }
+
+    /**
+     * Index of the first set pixel at or after from, or -1 if there is none.
+     */
+    public int nextSetBit(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int word = from >>> 6;
+        long bits = words[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    // Keeps only the pixels that are also set in other
+    public void and(BitMask other) {
+        checkSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    // Adds the pixels that are set in other
+    public void or(BitMask other) {
+        checkSize(other);
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    private void checkSize(BitMask other) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("Mask sizes differ: " + width + "x" + height
+                    + " and " + other.width + "x" + other.height);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import org.opencv.core.Mat;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Hough circles on the blurred grayscale image, verified against the object color mask.
+ */
+public class CircleDetector implements Detector<CircleParams> {
+    @Override
+    public String getName() {
+        return "circles";
+    }
+
+    @Override
+    public CircleParams params(Options options) {
+        return CircleParams.from(options);
+    }
+
+    @Override
+    public boolean usesOpenCv(Preprocessed image) {
+        return true;
+    }
+
+    @Override
+    public DetectionResult detect(Preprocessed image, CircleParams params) {
+        DetectionResult result = new DetectionResult(getName(), image.getWidth(), image.getHeight());
+
+        // Color similarity, transparent pixels are never objects
+        BitMask isObject = image.objectMask(params.getObjectRgb(), params.getMaxDelta());
+        CircleVerifier verifier = new CircleVerifier(isObject);
+
+        /* find the circles in the blurred grayscale image */
+        Mat circles = Main.findCircles(image.blurred(params.getBlurSize()), params);
+
+        Metrics.Span span = Metrics.begin("verify");
+        try {
+            Main.verifyCircles(circles, verifier, params, result);
+        } finally {
+            circles.release();
+            span.end();
+        }
+
+        return result;
+    }
+
+    @Override
+    public BufferedImage annotate(Preprocessed image, DetectionResult result, CircleParams params) {
+        return Annotator.drawCircles(image, result, params);
+    }
+}
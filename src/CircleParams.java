@@ -0,0 +1,128 @@
+import java.awt.Color;
+import java.util.Locale;
+
+/**
+ * Parameters of the Hough circle detector and the object color check.
+ */
+public class CircleParams {
+    public static final CircleParams DEFAULT = new CircleParams(1, 20, 40, 10, 20, 40,
+            Color.decode("#CDCAB9").getRGB(), 100, 5, 0.6, false);
+
+    // accumulator value
+    private final double dp;
+    // minimum distance between the center coordinates of detected circles in pixels
+    private final double minDist;
+    // param1 = gradient value used to handle edge detection
+    // param2 = Accumulator threshold value for the
+    // cv2.CV_HOUGH_GRADIENT method.
+    // The smaller the threshold is, the more circles will be
+    // detected (including false circles).
+    // The larger the threshold is, the more circles will
+    // potentially be returned.
+    private final double param1;
+    private final double param2;
+    // min and max radii
+    private final int minRadius;
+    private final int maxRadius;
+    // reference object color and the max color distance to count a pixel as object
+    private final int objectRgb;
+    private final int maxDelta;
+    // box blur kernel size applied before the Hough transform
+    private final int blurSize;
+    // circles need more than this share of object pixels to be counted
+    private final double minObjectRatio;
+    // paint the verified pixels green / red on annotated images
+    private final boolean debugSamples;
+
+    public CircleParams(double dp, double minDist, double param1, double param2, int minRadius, int maxRadius,
+                        int objectRgb, int maxDelta, int blurSize, double minObjectRatio, boolean debugSamples) {
+        if (minRadius < 0 || maxRadius < minRadius) {
+            throw new IllegalArgumentException("Invalid radius range " + minRadius + ".." + maxRadius);
+        }
+        if (dp <= 0 || minDist <= 0 || blurSize < 1) {
+            throw new IllegalArgumentException("dp, minDist and blurSize must be positive");
+        }
+        this.dp = dp;
+        this.minDist = minDist;
+        this.param1 = param1;
+        this.param2 = param2;
+        this.minRadius = minRadius;
+        this.maxRadius = maxRadius;
+        this.objectRgb = objectRgb;
+        this.maxDelta = maxDelta;
+        this.blurSize = blurSize;
+        this.minObjectRatio = minObjectRatio;
+        this.debugSamples = debugSamples;
+    }
+
+    /**
+     * Reads the parameters from options, falling back to the defaults for missing keys.
+     */
+    public static CircleParams from(Options options) {
+        CircleParams d = DEFAULT;
+        return new CircleParams(
+                options.getDouble("dp", d.dp),
+                options.getDouble("min-dist", d.minDist),
+                options.getDouble("param1", d.param1),
+                options.getDouble("param2", d.param2),
+                options.getInt("min-radius", d.minRadius),
+                options.getInt("max-radius", d.maxRadius),
+                options.has("color") ? Color.decode(options.get("color", null)).getRGB() : d.objectRgb,
+                options.getInt("max-delta", d.maxDelta),
+                options.getInt("blur", d.blurSize),
+                options.getDouble("min-object-ratio", d.minObjectRatio),
+                options.getBoolean("debug-samples", d.debugSamples));
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"dp\":%s,\"minDist\":%s,\"param1\":%s,\"param2\":%s,"
+                        + "\"minRadius\":%d,\"maxRadius\":%d,\"color\":\"#%06X\",\"maxDelta\":%d,\"blur\":%d,"
+                        + "\"minObjectRatio\":%s}",
+                dp, minDist, param1, param2, minRadius, maxRadius, objectRgb & 0xFFFFFF, maxDelta, blurSize,
+                minObjectRatio);
+    }
+
+    public double getDp() {
+        return dp;
+    }
+
+    public double getMinDist() {
+        return minDist;
+    }
+
+    public double getParam1() {
+        return param1;
+    }
+
+    public double getParam2() {
+        return param2;
+    }
+
+    public int getMinRadius() {
+        return minRadius;
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    public int getObjectRgb() {
+        return objectRgb;
+    }
+
+    public int getMaxDelta() {
+        return maxDelta;
+    }
+
+    public int getBlurSize() {
+        return blurSize;
+    }
+
+    public double getMinObjectRatio() {
+        return minObjectRatio;
+    }
+
+    public boolean isDebugSamples() {
+        return debugSamples;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Exact share of object pixels inside a circle, counted on the bit-packed object mask.
+ *
+ * A circle is covered by one span per row and each span is counted with a popcount per
+ * 64 pixels, so a query costs O(radius * (1 + radius / 64)) without any per-image tables
+ * besides the mask itself. Parts of the circle outside the image are ignored.
+ */
+public class CircleVerifier {
+    private final BitMask mask;
+    private final int width;
+    private final int height;
+    // half span widths per radius, stencils[r][dy] = floor(sqrt(r^2 - dy^2))
+    private int[][] stencils = new int[0][];
+
+    public CircleVerifier(BitMask mask) {
+        this.mask = mask;
+        this.width = mask.getWidth();
+        this.height = mask.getHeight();
+    }
+
+    /**
+     * Share of the circle's in-image pixels that are object pixels, 0 if none is in the image.
+     */
+    public double objectRatio(int centerX, int centerY, int radius) {
+        if (radius < 0) {
+            return 0;
+        }
+        int[] stencil = stencil(radius);
+        long objectPixels = 0, pixels = 0;
+        int y0 = Math.max(0, centerY - radius), y1 = Math.min(height - 1, centerY + radius);
+        for (int y = y0; y <= y1; y++) {
+            int half = stencil[Math.abs(y - centerY)];
+            int x0 = Math.max(0, centerX - half), x1 = Math.min(width - 1, centerX + half);
+            if (x0 > x1) {
+                continue;
+            }
+            int row = y * width;
+            objectPixels += mask.count(row + x0, row + x1 + 1);
+            pixels += x1 - x0 + 1;
+        }
+        return pixels == 0 ? 0 : (double) objectPixels / pixels;
+    }
+
+    /**
+     * Computes the spans of all radii up to maxRadius. Afterwards queries up to that radius
+     * only read shared state, so one verifier can serve several threads.
+     */
+    public void prepare(int maxRadius) {
+        for (int radius = 0; radius <= maxRadius; radius++) {
+            stencil(radius);
+        }
+    }
+
+    /**
+     * Debug view of the verification: paints every third pixel of the circle green when it
+     * is an object pixel and red otherwise.
+     */
+    public void drawSamples(PixelView view, int centerX, int centerY, int radius, int objectArgb, int otherArgb) {
+        int[] stencil = stencil(radius);
+        for (int dy = -radius; dy <= radius; dy += 3) {
+            int y = centerY + dy;
+            if (y < 0 || y >= height) {
+                continue;
+            }
+            int half = stencil[Math.abs(dy)];
+            for (int x = Math.max(0, centerX - half); x <= Math.min(width - 1, centerX + half); x += 3) {
+                view.set(x, y, mask.get(x, y) ? objectArgb : otherArgb);
+            }
+        }
+    }
+
+    private int[] stencil(int radius) {
+        if (radius >= stencils.length) {
+            int[][] grown = new int[Math.max(radius + 1, stencils.length * 2)][];
+            System.arraycopy(stencils, 0, grown, 0, stencils.length);
+            stencils = grown;
+        }
+        int[] stencil = stencils[radius];
+        if (stencil == null) {
+            stencil = new int[radius + 1];
+            long r2 = (long) radius * radius;
+            for (int dy = 0; dy <= radius; dy++) {
+                int half = (int) Math.sqrt(r2 - (long) dy * dy);
+                // correct floating point rounding so the span matches dx^2 + dy^2 <= r^2 exactly
+                while ((long) half * half + (long) dy * dy > r2) half--;
+                while ((long) (half + 1) * (half + 1) + (long) dy * dy <= r2) half++;
+                stencil[dy] = half;
+            }
+            stencils[radius] = stencil;
+        }
+        return stencil;
+    }
+}
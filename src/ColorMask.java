@@ -0,0 +1,92 @@
+/**
+ * Builds object masks by comparing every pixel against a reference colour.
+ *
+ * Uses the same weighted RGB distance as {@link Main#colorsAreSimilar(int, int, int)},
+ * sqrt(2*dr^2 + 4*db^2 + 3*dg^2) < maxDelta, but compares squared integer distances so
+ * no objects are created and no square root is taken per pixel.
+ */
+public class ColorMask {
+    // Largest possible squared distance is 9 * 255^2, so the integer math never overflows
+    private static final int MAX_DISTANCE_SQUARED = 9 * 255 * 255;
+
+    public static int distanceSquared(int rgb1, int rgb2) {
+        int redDiff = ((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF);
+        int greenDiff = ((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF);
+        int blueDiff = (rgb1 & 0xFF) - (rgb2 & 0xFF);
+        return 2 * redDiff * redDiff + 4 * blueDiff * blueDiff + 3 * greenDiff * greenDiff;
+    }
+
+    // Exclusive upper bound for distanceSquared, a distance below it means similar colours
+    public static int similarityLimit(int maxDelta) {
+        if (maxDelta <= 0) {
+            return 0;
+        }
+        return (int) Math.min((long) maxDelta * maxDelta, MAX_DISTANCE_SQUARED + 1);
+    }
+
+    /**
+     * Marks every pixel whose colour is similar to the reference colour.
+     */
+    public static BitMask build(int[] pixels, int width, int height, int referenceRgb, int maxDelta) {
+        return build(pixels, width, height, referenceRgb, maxDelta, false, false);
+    }
+
+    /**
+     * @param pixels          row-major packed ARGB pixels
+     * @param skipTransparent fully transparent pixels (value 0) are never part of the mask
+     * @param invert          mark the pixels that are NOT similar to the reference colour
+     */
+    public static BitMask build(int[] pixels, int width, int height, int referenceRgb, int maxDelta,
+                                boolean skipTransparent, boolean invert) {
+        BitMask mask = new BitMask(width, height);
+        fill(pixels, 0, width * height, referenceRgb, maxDelta, skipTransparent, invert, mask, 0);
+        return mask;
+    }
+
+    /**
+     * Same as {@link #build(int[], int, int, int, int, boolean, boolean)}, reading the image
+     * row by row.
+     */
+    public static BitMask build(PixelView view, int referenceRgb, int maxDelta,
+                                boolean skipTransparent, boolean invert) {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        BitMask mask = new BitMask(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            view.readRow(y, row, 0);
+            fill(row, 0, width, referenceRgb, maxDelta, skipTransparent, invert, mask, y * width);
+        }
+        return mask;
+    }
+
+    /**
+     * Sets the mask bits of length pixels starting at maskOffset for the pixels starting at
+     * offset. Bits of pixels that are not marked are left as they are.
+     */
+    public static void fill(int[] pixels, int offset, int length, int referenceRgb, int maxDelta,
+                            boolean skipTransparent, boolean invert, BitMask mask, int maskOffset) {
+        int refRed = (referenceRgb >> 16) & 0xFF;
+        int refGreen = (referenceRgb >> 8) & 0xFF;
+        int refBlue = referenceRgb & 0xFF;
+        int limit = similarityLimit(maxDelta);
+
+        // Collect 64 pixels into a word and store it at once, the inner loop stays a
+        // branch-free run of integer ops
+        for (int start = 0; start < length; start += 64) {
+            int count = Math.min(64, length - start);
+            long bits = 0;
+            for (int i = 0; i < count; i++) {
+                int rgb = pixels[offset + start + i];
+                int redDiff = ((rgb >> 16) & 0xFF) - refRed;
+                int greenDiff = ((rgb >> 8) & 0xFF) - refGreen;
+                int blueDiff = (rgb & 0xFF) - refBlue;
+                int distance = 2 * redDiff * redDiff + 4 * blueDiff * blueDiff + 3 * greenDiff * greenDiff;
+                boolean similar = distance < limit;
+                boolean marked = (similar != invert) & !(skipTransparent & rgb == 0);
+                bits |= (marked ? 1L : 0L) << i;
+            }
+            mask.setBits(maskOffset + start, bits, count);
+        }
+    }
+}
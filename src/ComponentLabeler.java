@@ -0,0 +1,243 @@
+import java.util.Arrays;
+
+/**
+ * Two-pass union-find connected-component labeling over a row-major pixel plane.
+ *
+ * Pixels are addressed by their row-major index (y * width + x) and joined with their
+ * 8 neighbours. Only primitive arrays are allocated, no matter how many pixels are visited.
+ */
+public class ComponentLabeler {
+
+    /**
+     * Decides which pixels take part in labeling and which neighbouring pixels belong together.
+     */
+    public interface Linker {
+        // true if the pixel at the given index belongs to any component
+        boolean include(int index);
+
+        // true if two included, adjacent pixels belong to the same component
+        boolean link(int index, int neighbourIndex);
+    }
+
+    /**
+     * Label plane plus per-component statistics. Labels start at 1, 0 means background.
+     */
+    public static class Components {
+        private final int width;
+        private final int height;
+        private final int count;
+        private final int[] labels;
+        private final int[] area;
+        private final int[] minX, minY, maxX, maxY;
+        private final long[] sumX, sumY;
+
+        private Components(int width, int height, int count, int[] labels) {
+            this.width = width;
+            this.height = height;
+            this.count = count;
+            this.labels = labels;
+            this.area = new int[count + 1];
+            this.minX = new int[count + 1];
+            this.minY = new int[count + 1];
+            this.maxX = new int[count + 1];
+            this.maxY = new int[count + 1];
+            this.sumX = new long[count + 1];
+            this.sumY = new long[count + 1];
+            Arrays.fill(minX, Integer.MAX_VALUE);
+            Arrays.fill(minY, Integer.MAX_VALUE);
+            Arrays.fill(maxX, -1);
+            Arrays.fill(maxY, -1);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        // Row-major label plane, shared with the caller for fast scans
+        public int[] labels() {
+            return labels;
+        }
+
+        public int label(int x, int y) {
+            return labels[y * width + x];
+        }
+
+        public int area(int label) {
+            return area[label];
+        }
+
+        public int minX(int label) {
+            return minX[label];
+        }
+
+        public int minY(int label) {
+            return minY[label];
+        }
+
+        public int maxX(int label) {
+            return maxX[label];
+        }
+
+        public int maxY(int label) {
+            return maxY[label];
+        }
+
+        public double centroidX(int label) {
+            return (double) sumX[label] / area[label];
+        }
+
+        public double centroidY(int label) {
+            return (double) sumY[label] / area[label];
+        }
+    }
+
+    /**
+     * Labels the 8-connected regions of a mask. Only the set pixels are visited, runs of
+     * background pixels are skipped a word at a time.
+     */
+    public static Components label(BitMask mask) {
+        return label(mask.getWidth(), mask.getHeight(), null, mask);
+    }
+
+    public static Components label(int width, int height, Linker linker) {
+        return label(width, height, linker, null);
+    }
+
+    // Exactly one of linker and mask is given, pixels of a mask are always linked
+    private static Components label(int width, int height, Linker linker, BitMask mask) {
+        int[] labels = new int[width * height];
+        // parent[0] is unused, provisional labels start at 1
+        int[] parent = new int[64];
+        int next = 1;
+
+        // First pass: assign provisional labels and record equivalences with the
+        // already visited neighbours (west, north-west, north, north-east)
+        int end = width * height;
+        for (int index = nextPixel(mask, linker, 0, end), y = 0, rowStart = 0; index >= 0;
+             index = nextPixel(mask, linker, index + 1, end)) {
+            // row of the pixel, only recomputed when the scan moved past the current one
+            if (index >= rowStart + width) {
+                y = index / width;
+                rowStart = y * width;
+            }
+            int x = index - rowStart;
+
+            int current = 0;
+            if (x > 0) {
+                current = join(parent, current, labels, index, index - 1, linker);
+            }
+            if (y > 0) {
+                int above = index - width;
+                if (x > 0) {
+                    current = join(parent, current, labels, index, above - 1, linker);
+                }
+                current = join(parent, current, labels, index, above, linker);
+                if (x < width - 1) {
+                    current = join(parent, current, labels, index, above + 1, linker);
+                }
+            }
+
+            if (current == 0) {
+                if (next == parent.length) {
+                    parent = Arrays.copyOf(parent, parent.length * 2);
+                }
+                parent[next] = next;
+                current = next++;
+            }
+            labels[index] = current;
+        }
+
+        // Flatten the forest and number the roots consecutively
+        int[] finalLabel = new int[next];
+        int count = 0;
+        for (int i = 1; i < next; i++) {
+            int root = find(parent, i);
+            if (root == i) {
+                finalLabel[i] = ++count;
+            }
+        }
+        for (int i = 1; i < next; i++) {
+            finalLabel[i] = finalLabel[find(parent, i)];
+        }
+
+        // Second pass: write final labels and collect the statistics
+        Components components = new Components(width, height, count, labels);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int provisional = labels[row + x];
+                if (provisional == 0) {
+                    continue;
+                }
+                int label = finalLabel[provisional];
+                labels[row + x] = label;
+
+                components.area[label]++;
+                components.sumX[label] += x;
+                components.sumY[label] += y;
+                if (x < components.minX[label]) components.minX[label] = x;
+                if (x > components.maxX[label]) components.maxX[label] = x;
+                if (y < components.minY[label]) components.minY[label] = y;
+                if (y > components.maxY[label]) components.maxY[label] = y;
+            }
+        }
+        return components;
+    }
+
+    // Merge the current pixel with an already labelled neighbour, returns the label to use
+    private static int join(int[] parent, int current, int[] labels, int index, int neighbour, Linker linker) {
+        int neighbourLabel = labels[neighbour];
+        if (neighbourLabel == 0 || (linker != null && !linker.link(index, neighbour))) {
+            return current;
+        }
+        if (current == 0) {
+            return neighbourLabel;
+        }
+        int a = find(parent, current);
+        int b = find(parent, neighbourLabel);
+        if (a != b) {
+            // keep the smaller root so labels stay in scan order
+            if (a < b) {
+                parent[b] = a;
+            } else {
+                parent[a] = b;
+            }
+        }
+        return current;
+    }
+
+    // Index of the next included pixel at or after from, -1 if there is none
+    private static int nextPixel(BitMask mask, Linker linker, int from, int end) {
+        if (mask != null) {
+            return mask.nextSetBit(from);
+        }
+        for (int index = from; index < end; index++) {
+            if (linker.include(index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static int find(int[] parent, int label) {
+        int root = label;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        // path compression
+        while (parent[label] != root) {
+            int next = parent[label];
+            parent[label] = root;
+            label = next;
+        }
+        return root;
+    }
+}
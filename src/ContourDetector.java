@@ -0,0 +1,90 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the outlines of the dilated Canny edge map, each at the center of its bounding
+ * rectangle.
+ */
+public class ContourDetector implements Detector<EdgeParams> {
+    @Override
+    public String getName() {
+        return "contours";
+    }
+
+    @Override
+    public EdgeParams params(Options options) {
+        return EdgeParams.from(options);
+    }
+
+    @Override
+    public boolean usesOpenCv(Preprocessed image) {
+        return true;
+    }
+
+    @Override
+    public DetectionResult detect(Preprocessed image, EdgeParams params) {
+        List<MatOfPoint> contours = findContours(image, params);
+
+        DetectionResult result = new DetectionResult(getName(), image.getWidth(), image.getHeight());
+        for (MatOfPoint contour : contours) {
+            Rect rect = Imgproc.boundingRect(contour);
+            result.add(new DetectionResult.DetectedObject(rect.x + rect.width / 2.0,
+                    rect.y + rect.height / 2.0, 0, Imgproc.contourArea(contour)));
+        }
+        releaseContours(contours);
+        return result;
+    }
+
+    @Override
+    public BufferedImage annotate(Preprocessed image, DetectionResult result, EdgeParams params) {
+        return Annotator.drawContours(image, params);
+    }
+
+    // The edge map as an image, this is what the edges detector shows
+    static BufferedImage edgeImage(Preprocessed image, EdgeParams params) {
+        /* grayscale, blur and Canny, see Preprocessed#edges */
+        Mat edges = image.edges(params);
+            /* reduce the noise so we avoid false circle detection */
+//        Imgproc.dilate(grayMat, grayMat, new Mat());
+//        Imgproc.erode(grayMat, grayMat, new Mat());
+
+            /* convert back to buffered image */
+        return MatBridge.toBufferedImage(edges);
+    }
+
+    /**
+     * Outer and inner outlines of the dilated edge map. The contours hold native memory,
+     * release them with {@link #releaseContours(List)}.
+     */
+    static List<MatOfPoint> findContours(Preprocessed image, EdgeParams params) {
+        Mat edges = image.edges(params);
+        // the shared edge map stays as it is, dilate into a scratch Mat
+        Mat grayMat = MatBridge.pooled("contours", edges.rows(), edges.cols(), CvType.CV_8UC1);
+        /* reduce the noise so we avoid false circle detection */
+        Mat kernel = new Mat();
+        Imgproc.dilate(edges, grayMat, kernel);
+        Imgproc.erode(grayMat, grayMat, kernel);
+
+        /* create a Mat object to store the circles detected */
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        Mat hierarchy = new Mat();
+        Imgproc.findContours(grayMat, contours, hierarchy, Imgproc.RETR_LIST,Imgproc.CHAIN_APPROX_SIMPLE);
+
+        /* free native memory right away instead of waiting for finalizers */
+        MatBridge.release(kernel, hierarchy);
+        return contours;
+    }
+
+    static void releaseContours(List<MatOfPoint> contours) {
+        for (MatOfPoint contour : contours) {
+            contour.release();
+        }
+    }
+}
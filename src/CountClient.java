@@ -0,0 +1,51 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Small command line client for {@link CountServer}.
+ *
+ * Usage: CountClient &lt;image&gt; [url], e.g.
+ * CountClient data/plate.jpg "http://localhost:8080/count?detector=circles&amp;min-radius=25"
+ */
+public class CountClient {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CountClient <image> [url]");
+            System.exit(2);
+        }
+        String url = args.length > 1 ? args[1] : "http://localhost:8080/count";
+        byte[] image = Files.readAllBytes(Paths.get(args[0]));
+
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(image.length);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(image);
+        }
+
+        int status = connection.getResponseCode();
+        InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (body != null) {
+            try (InputStream in = body) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    response.write(buffer, 0, n);
+                }
+            }
+        }
+        System.out.println("HTTP " + status + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        System.out.println(new String(response.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
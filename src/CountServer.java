@@ -0,0 +1,263 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived HTTP counting service that keeps the JVM, JIT and OpenCV warm between images.
+ *
+ * POST /count?detector=circles&annotate=true&min-radius=20... with the image bytes as body
+ * returns the detection result as JSON, optionally with the annotated image as base64 JPEG.
+ * Detector parameters use the same names as the command line options. Requests are handled
+ * on virtual threads when the JVM supports them; a semaphore caps how many requests read,
+ * decode and detect at once, and requests that cannot get a permit in time are answered
+ * with 429 before their body is read. Bodies over maxBodyBytes are answered with 413. With a
+ * {@link ResultCache}, images seen before with the same settings are answered without
+ * decoding or detecting them.
+ */
+public class CountServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final long queueTimeoutMillis;
+    private final int maxBodyBytes;
+    // may be null
+    private final ResultCache cache;
+
+    public CountServer(int port, int maxConcurrent, long queueTimeoutMillis, int maxBodyBytes, ResultCache cache)
+            throws IOException {
+        if (maxBodyBytes < 1 || maxBodyBytes == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxBodyBytes must be positive and less than 2 GB");
+        }
+        this.permits = new Semaphore(maxConcurrent);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.maxBodyBytes = maxBodyBytes;
+        this.cache = cache;
+        this.executor = newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/count", this::handleCount);
+        this.server.createContext("/health", exchange -> respond(exchange, 200, "{\"status\":\"ok\"}"));
+        this.server.createContext("/metrics", exchange -> respond(exchange, 200, Metrics.toJson()));
+    }
+
+    public static void run(Options options) throws IOException {
+        int port = options.getInt("port", 8080);
+        int maxConcurrent = options.getInt("max-concurrent", Runtime.getRuntime().availableProcessors());
+        int maxBodyMb = options.getInt("max-body-mb", 32);
+        if (maxBodyMb < 1 || maxBodyMb > 1024) {
+            throw new IllegalArgumentException("max-body-mb must be between 1 and 1024");
+        }
+        CountServer countServer = new CountServer(port, maxConcurrent, options.getInt("queue-timeout-ms", 0),
+                maxBodyMb << 20, Main.openCache(options));
+        Runtime.getRuntime().addShutdownHook(new Thread(countServer::stop));
+        countServer.start();
+        System.out.println("Listening on port " + port + " with " + maxConcurrent + " concurrent detections");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the result cache: " + e);
+            }
+        }
+    }
+
+    // Virtual threads need Java 21, older JVMs fall back to a cached pool of platform threads
+    private static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handleCount(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("use POST with the image as request body"));
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            Options options = new Options(query);
+            String detector = options.get("detector", "circles");
+            boolean annotate = options.getBoolean("annotate", false);
+
+            // the detector's own parameters, they are also part of the cache key
+            Object params;
+            try {
+                params = Detectors.params(detector, options);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+                return;
+            }
+
+            // Oversized uploads are refused before they are read
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            long declared;
+            try {
+                declared = length == null ? -1 : Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, error("invalid Content-Length: " + length));
+                return;
+            }
+            if (declared > maxBodyBytes) {
+                respond(exchange, 413, error("request body is larger than " + maxBodyBytes + " bytes"));
+                return;
+            }
+            // The permit covers reading and decoding the body too, so at most maxConcurrent
+            // bodies and decoded images are held in memory
+            if (!permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, error("too many concurrent requests"));
+                return;
+            }
+            String json;
+            try {
+                long start = System.nanoTime();
+                byte[] bytes = readBody(exchange);
+                if (bytes == null) {
+                    respond(exchange, 413, error("request body is larger than " + maxBodyBytes + " bytes"));
+                    return;
+                }
+                byte[] key = null;
+                DetectionResult cached = null;
+                if (cache != null) {
+                    key = ResultCache.key(bytes, detector, params);
+                    cached = cache.get(key);
+                    if (cached != null && !annotate) {
+                        respond(exchange, 200, withTime(cached.toJson(), start) + "}");
+                        return;
+                    }
+                }
+
+                BufferedImage image;
+                Metrics.Span span = Metrics.begin("decode");
+                try {
+                    image = ImageIO.read(new ByteArrayInputStream(bytes));
+                } finally {
+                    span.end();
+                }
+                if (image == null) {
+                    respond(exchange, 400, error("request body is not a readable image"));
+                    return;
+                }
+
+                start = System.nanoTime();
+                // detection and annotation share the grayscale, blurred and mask images
+                Preprocessed preprocessed = new Preprocessed(image);
+                DetectionResult result = cached;
+                if (result == null) {
+                    result = Main.count(detector, preprocessed, params);
+                    if (cache != null) {
+                        cache.put(key, result, params);
+                    }
+                }
+
+                json = withTime(result.toJson(), start);
+                if (annotate) {
+                    // Rendering is only paid for when the client asks for it
+                    BufferedImage annotated;
+                    span = Metrics.begin("annotate");
+                    try {
+                        annotated = Annotator.annotate(preprocessed, result, params);
+                    } finally {
+                        span.end();
+                    }
+                    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+                    span = Metrics.begin("encode");
+                    try {
+                        ImageIO.write(annotated, "jpg", jpeg);
+                    } finally {
+                        span.end();
+                    }
+                    json += ",\"annotated\":\"" + Base64.getEncoder().encodeToString(jpeg.toByteArray()) + "\"";
+                }
+                json += "}";
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, error(e.getMessage()));
+                return;
+            } finally {
+                // Request threads are not reused, so give the native Mats back right away
+                MatBridge.releaseThread();
+                permits.release();
+            }
+            respond(exchange, 200, json);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, error("interrupted"));
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error(e.toString()));
+        }
+    }
+
+    // The request body, or null if it is longer than maxBodyBytes; reads at most one byte more
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] bytes = body.readNBytes(maxBodyBytes + 1);
+            return bytes.length > maxBodyBytes ? null : bytes;
+        }
+    }
+
+    // Result JSON without its closing brace, followed by the time since start
+    private static String withTime(String json, long start) {
+        return json.substring(0, json.length() - 1)
+                + String.format(Locale.ROOT, ",\"timeMs\":%.1f", (System.nanoTime() - start) / 1e6);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "true" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String error(String message) {
+        String escaped = String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"");
+        return "{\"error\":\"" + escaped + "\"}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Objects found by one detector run on one image.
+ */
+public class DetectionResult {
+    public static class DetectedObject {
+        private final double x;
+        private final double y;
+        // radius for circles, 0 for region based detectors
+        private final double radius;
+        // pixel area of the object
+        private final double area;
+
+        public DetectedObject(double x, double y, double radius, double area) {
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.area = area;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        public double getRadius() {
+            return radius;
+        }
+
+        public double getArea() {
+            return area;
+        }
+    }
+
+    private final String detector;
+    private final int width;
+    private final int height;
+    private final List<DetectedObject> objects = new ArrayList<>();
+    // candidates the detector looked at but did not count
+    private int rejected;
+
+    public DetectionResult(String detector, int width, int height) {
+        this.detector = detector;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void add(DetectedObject object) {
+        objects.add(object);
+    }
+
+    public void reject() {
+        rejected++;
+    }
+
+    public void reject(int candidates) {
+        rejected += candidates;
+    }
+
+    public String getDetector() {
+        return detector;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int count() {
+        return objects.size();
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Share of the candidates that were counted, 0 if the detector saw no candidates.
+     */
+    public double getAcceptRatio() {
+        int candidates = count() + rejected;
+        return candidates == 0 ? 0 : (double) count() / candidates;
+    }
+
+    public List<DetectedObject> getObjects() {
+        return Collections.unmodifiableList(objects);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder(64 + objects.size() * 48);
+        json.append("{\"detector\":\"").append(detector).append('"')
+                .append(",\"width\":").append(width)
+                .append(",\"height\":").append(height)
+                .append(",\"count\":").append(count())
+                .append(",\"rejected\":").append(rejected)
+                .append(String.format(Locale.ROOT, ",\"acceptRatio\":%.3f", getAcceptRatio()))
+                .append(",\"objects\":[");
+        for (int i = 0; i < objects.size(); i++) {
+            DetectedObject object = objects.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "{\"x\":%.1f,\"y\":%.1f,\"r\":%.1f,\"area\":%.1f}",
+                    object.x, object.y, object.radius, object.area));
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,30 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * One way of finding objects in an image, selected by name with --detector.
+ *
+ * Implementations are registered in {@link Detectors}. Each detector has its own parameter
+ * type, read from the command line or request options by {@link #params(Options)}. A
+ * detector also renders its own results, with the same parameters it detected them with.
+ *
+ * @param <P> parameter type of the detector
+ */
+public interface Detector<P> {
+    String getName();
+
+    // Parameters of this detector from the options, with defaults for the missing keys
+    P params(Options options);
+
+    // true if detecting objects in or annotating this image calls into OpenCV
+    boolean usesOpenCv(Preprocessed image);
+
+    DetectionResult detect(Preprocessed image, P params);
+
+    /**
+     * Renders a result of {@link #detect(Preprocessed, Object)} on the same image, which may
+     * be drawn into. By default every object is outlined, see {@link Annotator#drawObjects}.
+     */
+    default BufferedImage annotate(Preprocessed image, DetectionResult result, P params) {
+        return Annotator.drawObjects(image, result);
+    }
+}
@@ -0,0 +1,165 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The detectors selectable with --detector, and the choice between native and Java code
+ * per image.
+ *
+ * OpenCV is loaded right before the first detector that uses it runs, so a run with only
+ * Java detectors on small images never loads the native library. Detectors with both a
+ * Java and an OpenCV backend use OpenCV for images of at least --native-min-pixels pixels,
+ * below that copying the image into a Mat costs more than the native code saves.
+ */
+public class Detectors {
+    public static final int DEFAULT_NATIVE_MIN_PIXELS = 512 * 512;
+
+    private static final Map<String, Detector<?>> DETECTORS = new LinkedHashMap<>();
+    private static volatile int nativeMinPixels = DEFAULT_NATIVE_MIN_PIXELS;
+
+    static {
+        register(new CircleDetector());
+        register(new Detector<CircleParams>() {
+            @Override
+            public String getName() {
+                return "circles-tiled";
+            }
+
+            @Override
+            public CircleParams params(Options options) {
+                return CircleParams.from(options);
+            }
+
+            @Override
+            public boolean usesOpenCv(Preprocessed image) {
+                return true;
+            }
+
+            @Override
+            public DetectionResult detect(Preprocessed image, CircleParams params) {
+                DetectionResult result = new DetectionResult(getName(), image.getWidth(), image.getHeight());
+                try {
+                    TiledCircleDetector.shared().detect(image.getImage(), params, result);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while detecting circles", e);
+                }
+                return result;
+            }
+
+            @Override
+            public BufferedImage annotate(Preprocessed image, DetectionResult result, CircleParams params) {
+                return Annotator.drawCircles(image, result, params);
+            }
+        });
+        register(new Detector<CircleParams>() {
+            @Override
+            public String getName() {
+                return "circles-pyramid";
+            }
+
+            @Override
+            public CircleParams params(Options options) {
+                return CircleParams.from(options);
+            }
+
+            @Override
+            public boolean usesOpenCv(Preprocessed image) {
+                return true;
+            }
+
+            @Override
+            public DetectionResult detect(Preprocessed image, CircleParams params) {
+                DetectionResult result = new DetectionResult(getName(), image.getWidth(), image.getHeight());
+                PyramidCircleDetector.detect(image, params, result);
+                return result;
+            }
+
+            @Override
+            public BufferedImage annotate(Preprocessed image, DetectionResult result, CircleParams params) {
+                return Annotator.drawCircles(image, result, params);
+            }
+        });
+        register(new ContourDetector());
+        register(new EdgeDetector());
+        register(new RegionDetector("naive", RegionParams.NAIVE, Main.WHITE));
+        register(new RegionDetector("background", RegionParams.BACKGROUND, Main.RED));
+    }
+
+    /**
+     * Adds a detector, replacing a registered one with the same name.
+     */
+    public static synchronized void register(Detector<?> detector) {
+        DETECTORS.put(detector.getName(), detector);
+    }
+
+    public static synchronized Detector<?> get(String name) {
+        Detector<?> detector = DETECTORS.get(name);
+        if (detector == null) {
+            throw new IllegalArgumentException("Unknown detector: " + name + ", expected one of " + DETECTORS.keySet());
+        }
+        return detector;
+    }
+
+    public static synchronized Collection<String> names() {
+        return Collections.unmodifiableCollection(new ArrayList<>(DETECTORS.keySet()));
+    }
+
+    public static void setNativeMinPixels(int pixels) {
+        if (pixels < 0) {
+            throw new IllegalArgumentException("native-min-pixels must not be negative");
+        }
+        nativeMinPixels = pixels;
+    }
+
+    // true if the image is large enough for the OpenCV backend of a detector
+    public static boolean prefersNative(Preprocessed image) {
+        return (long) image.getWidth() * image.getHeight() >= nativeMinPixels;
+    }
+
+    /**
+     * Runs the named detector with params, which must be its own parameters, see
+     * {@link #params(String, Options)}.
+     */
+    public static DetectionResult detect(String name, Preprocessed image, Object params) {
+        return run(get(name), image, params);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <P> DetectionResult run(Detector<P> detector, Preprocessed image, Object params) {
+        return detect(detector, image, (P) params);
+    }
+
+    public static <P> DetectionResult detect(Detector<P> detector, Preprocessed image, P params) {
+        if (detector.usesOpenCv(image)) {
+            OpenCv.load();
+        }
+        return detector.detect(image, params);
+    }
+
+    /**
+     * The parameters of the named detector read from the options.
+     */
+    public static Object params(String name, Options options) {
+        return get(name).params(options);
+    }
+
+    /**
+     * Renders a result of the named detector with the parameters it was detected with.
+     */
+    public static BufferedImage annotate(String name, Preprocessed image, DetectionResult result, Object params) {
+        return render(get(name), image, result, params);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <P> BufferedImage render(Detector<P> detector, Preprocessed image, DetectionResult result,
+                                            Object params) {
+        if (detector.usesOpenCv(image)) {
+            OpenCv.load();
+        }
+        return detector.annotate(image, result, (P) params);
+    }
+}
@@ -0,0 +1,34 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Shows the Canny edge map the contour detector works on. Nothing is counted, the edge
+ * map is the annotated image.
+ */
+public class EdgeDetector implements Detector<EdgeParams> {
+    @Override
+    public String getName() {
+        return "edges";
+    }
+
+    @Override
+    public EdgeParams params(Options options) {
+        return EdgeParams.from(options);
+    }
+
+    // The edge map is only computed when annotating, but always with OpenCV
+    @Override
+    public boolean usesOpenCv(Preprocessed image) {
+        return true;
+    }
+
+    @Override
+    public DetectionResult detect(Preprocessed image, EdgeParams params) {
+        // edge map only, it is produced by annotate and no objects are counted
+        return new DetectionResult(getName(), image.getWidth(), image.getHeight());
+    }
+
+    @Override
+    public BufferedImage annotate(Preprocessed image, DetectionResult result, EdgeParams params) {
+        return ContourDetector.edgeImage(image, params);
+    }
+}
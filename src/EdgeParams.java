@@ -0,0 +1,57 @@
+import java.util.Locale;
+
+/**
+ * Parameters of the edge map used by the contour and edge detectors.
+ */
+public class EdgeParams {
+    public static final EdgeParams DEFAULT = new EdgeParams(7, 20);
+
+    // box blur kernel size applied before Canny
+    private final int blurSize;
+    // Canny hysteresis thresholds are cannyLow and 3 * cannyLow
+    private final double cannyLow;
+
+    public EdgeParams(int blurSize, double cannyLow) {
+        if (blurSize < 1 || cannyLow < 0) {
+            throw new IllegalArgumentException("blurSize must be positive and cannyLow not negative");
+        }
+        this.blurSize = blurSize;
+        this.cannyLow = cannyLow;
+    }
+
+    /**
+     * Reads the parameters from options, falling back to the defaults for missing keys.
+     */
+    public static EdgeParams from(Options options) {
+        EdgeParams d = DEFAULT;
+        return new EdgeParams(
+                options.getInt("blur", d.blurSize),
+                options.getDouble("canny-low", d.cannyLow));
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"blur\":%d,\"cannyLow\":%s}", blurSize, cannyLow);
+    }
+
+    public int getBlurSize() {
+        return blurSize;
+    }
+
+    public double getCannyLow() {
+        return cannyLow;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof EdgeParams)) {
+            return false;
+        }
+        EdgeParams other = (EdgeParams) o;
+        return blurSize == other.blurSize && cannyLow == other.cannyLow;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * blurSize + Double.hashCode(cannyLow);
+    }
+}
@@ -0,0 +1,329 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decodes images with an ImageReader, optionally reading only every n-th pixel and only a
+ * region of the source.
+ *
+ * Subsampling happens inside the reader, so a subsampled JPEG never exists at full size in
+ * memory. Images without alpha are decoded straight into TYPE_3BYTE_BGR, the layout
+ * {@link MatBridge#toMat(BufferedImage)} copies without conversion. Every thread keeps one
+ * reader per format and reuses it for all of its images.
+ *
+ * Detection on a decoded image runs with {@link #scale(Object)} and its results are
+ * mapped back to source pixels with {@link #toSource(DetectionResult, Rectangle)}. Only the
+ * circle detectors support subsampling, the area limits of the other detectors are in
+ * source pixels.
+ */
+public class ImageDecoder {
+    public static final ImageDecoder FULL = new ImageDecoder(1, null);
+
+    // Same target as the pyramid detector, smaller circles get too few edge pixels for Hough
+    private static final int MIN_SUBSAMPLED_RADIUS = 10;
+    private static final int MAX_SUBSAMPLING = 8;
+    // Property of decoded images with the part of the source they were decoded from
+    private static final String SOURCE_BOUNDS = "easycount.sourceBounds";
+
+    private static final ThreadLocal<Map<ImageReaderSpi, ImageReader>> READERS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private final int subsampling;
+    // may be null for the whole image
+    private final Rectangle region;
+
+    public ImageDecoder(int subsampling, Rectangle region) {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be positive");
+        }
+        if (region != null && (region.x < 0 || region.y < 0 || region.width < 1 || region.height < 1)) {
+            throw new IllegalArgumentException("Invalid region " + region);
+        }
+        this.subsampling = subsampling;
+        this.region = region;
+    }
+
+    /**
+     * The decoder selected with --subsample n|auto and --region x,y,width,height for the
+     * detector with its own parameters, see {@link Detectors#params}. auto picks
+     * the factor from the radius range, for the circle detectors only since the area limits
+     * of the other detectors are in source pixels. An explicit factor for one of the other
+     * detectors is rejected.
+     */
+    public static ImageDecoder from(Options options, String detector, Object params) {
+        String value = options.get("subsample", "1");
+        boolean circles = params instanceof CircleParams;
+        int subsampling;
+        if ("auto".equals(value)) {
+            subsampling = circles ? subsamplingFor((CircleParams) params) : 1;
+        } else {
+            subsampling = Integer.parseInt(value);
+            if (subsampling > 1 && !circles) {
+                throw new IllegalArgumentException("--subsample is only supported by the circle detectors, not by "
+                        + detector);
+            }
+        }
+
+        Rectangle region = null;
+        if (options.has("region")) {
+            String[] parts = options.get("region", null).split(",");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("--region needs x,y,width,height");
+            }
+            region = new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+        }
+        return subsampling == 1 && region == null ? FULL : new ImageDecoder(subsampling, region);
+    }
+
+    /**
+     * Largest factor that keeps the smallest radius at MIN_SUBSAMPLED_RADIUS pixels or more.
+     */
+    public static int subsamplingFor(CircleParams params) {
+        return Math.max(1, Math.min(MAX_SUBSAMPLING, params.getMinRadius() / MIN_SUBSAMPLED_RADIUS));
+    }
+
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    public Rectangle getRegion() {
+        return region;
+    }
+
+    public boolean isFull() {
+        return subsampling == 1 && region == null;
+    }
+
+    public BufferedImage read(File file) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        if (stream == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        return read(stream);
+    }
+
+    public BufferedImage read(byte[] bytes) throws IOException {
+        return read(ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Decodes the first image of the stream and closes it. Returns null if no reader
+     * understands the format, like ImageIO.read. Unless this decoder is FULL, the image
+     * carries the source bounds it was decoded from, see {@link #sourceBounds(BufferedImage)}.
+     */
+    public BufferedImage read(ImageInputStream stream) throws IOException {
+        try {
+            ImageReader reader = reader(stream);
+            if (reader == null) {
+                return null;
+            }
+            boolean done = false;
+            try {
+                reader.setInput(stream, true, true);
+                Rectangle bounds = bounds(reader);
+                BufferedImage image = reader.read(0, param(reader, bounds));
+                done = true;
+                if (isFull()) {
+                    return image;
+                }
+                // Same raster, only the properties are new
+                Hashtable<String, Object> properties = new Hashtable<>();
+                properties.put(SOURCE_BOUNDS, bounds);
+                return new BufferedImage(image.getColorModel(), image.getRaster(), image.isAlphaPremultiplied(),
+                        properties);
+            } finally {
+                if (done) {
+                    reader.setInput(null);
+                } else {
+                    // a failed read can leave the reader in any state, start over with a new one
+                    READERS.get().remove(reader.getOriginatingProvider());
+                    reader.dispose();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * The part of the source a decoded image came from, null for images decoded by FULL or
+     * not by an ImageDecoder.
+     */
+    public static Rectangle sourceBounds(BufferedImage image) {
+        Object bounds = image.getProperty(SOURCE_BOUNDS);
+        return bounds instanceof Rectangle ? (Rectangle) bounds : null;
+    }
+
+    /**
+     * The part of the encoded image this decoder reads, from its header only. Null for
+     * FULL or if no reader understands the format.
+     */
+    public Rectangle sourceBounds(byte[] bytes) throws IOException {
+        if (isFull()) {
+            return null;
+        }
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            ImageReader reader = reader(stream);
+            if (reader == null) {
+                return null;
+            }
+            reader.setInput(stream, true, true);
+            try {
+                return bounds(reader);
+            } finally {
+                reader.setInput(null);
+            }
+        }
+    }
+
+    // The region within the image, or the whole image
+    private Rectangle bounds(ImageReader reader) throws IOException {
+        Rectangle bounds = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+        if (region != null) {
+            bounds = bounds.intersection(region);
+            if (bounds.isEmpty()) {
+                throw new IOException("Region " + region.x + "," + region.y + "," + region.width + ","
+                        + region.height + " is outside of the image");
+            }
+        }
+        return bounds;
+    }
+
+    private ImageReadParam param(ImageReader reader, Rectangle bounds) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (region != null) {
+            param.setSourceRegion(bounds);
+        }
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+
+        // Decode into BGR if the reader offers it, unless that would drop an alpha channel
+        ImageTypeSpecifier bgr = null;
+        boolean hasAlpha = false;
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        for (boolean first = true; types.hasNext(); first = false) {
+            ImageTypeSpecifier type = types.next();
+            if (first) {
+                hasAlpha = type.getColorModel().hasAlpha();
+            }
+            if (type.getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+                bgr = type;
+            }
+        }
+        if (bgr != null && !hasAlpha) {
+            param.setDestinationType(bgr);
+        }
+        return param;
+    }
+
+    /**
+     * Disposes the readers of the calling thread.
+     */
+    public static void releaseThread() {
+        for (ImageReader reader : READERS.get().values()) {
+            reader.dispose();
+        }
+        READERS.remove();
+    }
+
+    // This thread's reader for the format of the stream
+    private static ImageReader reader(ImageInputStream stream) throws IOException {
+        Map<ImageReaderSpi, ImageReader> readers = READERS.get();
+        Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageReaderSpi.class, true);
+        while (providers.hasNext()) {
+            ImageReaderSpi provider = providers.next();
+            if (canDecode(provider, stream)) {
+                ImageReader reader = readers.get(provider);
+                if (reader == null) {
+                    reader = provider.createReaderInstance();
+                    readers.put(provider, reader);
+                }
+                return reader;
+            }
+        }
+        return null;
+    }
+
+    // Same check as ImageIO.getImageReaders, a header too short for a format is no match
+    private static boolean canDecode(ImageReaderSpi provider, ImageInputStream stream) {
+        stream.mark();
+        try {
+            return provider.canDecodeInput(stream);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                stream.reset();
+            } catch (IOException e) {
+                // the mark was set above, reset cannot fail
+            }
+        }
+    }
+
+    /**
+     * Detector parameters for images decoded by this decoder. Circle distances and radii
+     * shrink with the subsampling, the colour check stays the same. Other detectors do not
+     * support subsampling, their parameters are returned as they are.
+     */
+    public Object scale(Object detectorParams) {
+        if (subsampling == 1 || !(detectorParams instanceof CircleParams)) {
+            return detectorParams;
+        }
+        CircleParams params = (CircleParams) detectorParams;
+        int f = subsampling;
+        return new CircleParams(params.getDp(), Math.max(1, params.getMinDist() / f), params.getParam1(),
+                params.getParam2(), params.getMinRadius() / f, (params.getMaxRadius() + f - 1) / f,
+                params.getObjectRgb(), params.getMaxDelta(), Math.max(1, params.getBlurSize() / f),
+                params.getMinObjectRatio(), params.isDebugSamples());
+    }
+
+    /**
+     * Copy of a result found on a decoded image, in the pixel coordinates of the source.
+     * bounds is the part of the source the image was decoded from, see sourceBounds; the
+     * subsampled size times the factor can be up to factor - 1 pixels larger.
+     */
+    public DetectionResult toSource(DetectionResult result, Rectangle bounds) {
+        if (isFull()) {
+            return result;
+        }
+        int f = subsampling;
+        int offsetX = bounds.x;
+        int offsetY = bounds.y;
+        DetectionResult source = new DetectionResult(result.getDetector(),
+                Math.min(result.getWidth() * f, bounds.width), Math.min(result.getHeight() * f, bounds.height));
+        for (DetectionResult.DetectedObject object : result.getObjects()) {
+            source.add(new DetectionResult.DetectedObject(offsetX + object.getX() * f, offsetY + object.getY() * f,
+                    object.getRadius() * f, object.getArea() * f * f));
+        }
+        source.reject(result.getRejected());
+        return source;
+    }
+
+    /**
+     * Tells results of different decoders apart in the result cache, empty for FULL so
+     * existing cache entries stay valid.
+     */
+    public String cacheTag() {
+        if (isFull()) {
+            return "";
+        }
+        return "|subsample=" + subsampling
+                + (region == null ? "" : "|region=" + region.x + "," + region.y + "," + region.width + "," + region.height);
+    }
+}
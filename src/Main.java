@@ -2,328 +2,229 @@ import org.opencv.core.*;
 import org.opencv.core.Point;
 import org.opencv.imgproc.Imgproc;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
 
 public class Main {
-    // Compulsory
-    static{ System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+    // OpenCV is loaded on first use, see OpenCv.load
 
     public static final String OUTPUT_SUFFIX = ".out";
-    public static final double CANNY_LOW_THREASHOLD = 20;
-
-    public static void main(String[] args) throws IOException {
-        File[] files = new File("data").listFiles();
-        BufferedImage img = null;
-        BufferedImage target = null;
-
-        for (File file : files) {
-            String filePath = file.getPath();
-            // Skip output file
-            if(filePath.endsWith(OUTPUT_SUFFIX)) {
-                continue;
-            }
 
-            System.out.println("Processing file " + file.getName());
-            img = ImageIO.read(file);
-            if (img == null) {
-                System.err.println("image is null");
-                continue;
-            }
-            img = detectCircles(img);
-            File outputfile = new File(filePath.substring(0, file.getPath().indexOf(".")) + "_circle" + OUTPUT_SUFFIX);
-            ImageIO.write(img, "jpg", outputfile);
+    // Annotation colors, packed ARGB
+    static final int BLACK = Color.BLACK.getRGB();
+    static final int WHITE = Color.WHITE.getRGB();
+    static final int RED = Color.RED.getRGB();
+    static final int GREEN = Color.GREEN.getRGB();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // The first argument optionally selects the run mode, batch processing is the default
+        boolean hasMode = args.length > 0 && !args[0].startsWith("--");
+        String mode = hasMode ? args[0] : "batch";
+        Options options = new Options(args, hasMode ? 1 : 0);
+        // --metrics [--metrics-interval 10] [--metrics-format text|json] dumps per-stage metrics periodically
+        if (options.getBoolean("metrics", false)) {
+            Metrics.setEnabled(true);
+            Metrics.startDump(options.getInt("metrics-interval", 10), "json".equals(options.get("metrics-format", "text")));
+        }
+        // --native-min-pixels N: detectors with a Java and an OpenCV backend use OpenCV from N pixels on
+        Detectors.setNativeMinPixels(options.getInt("native-min-pixels", Detectors.DEFAULT_NATIVE_MIN_PIXELS));
+        switch (mode) {
+            case "batch":
+                runBatch(options);
+                break;
+            case "serve":
+                CountServer.run(options);
+                break;
+            case "watch":
+                WatchPipeline.run(options);
+                break;
+            case "sequence":
+                SequenceCounter.run(options);
+                break;
+            case "sweep":
+                ParameterSweep.run(options);
+                break;
+            case "coordinator":
+                ShardCoordinator.run(options);
+                break;
+            case "worker":
+                ShardWorker.run(options);
+                break;
+            case "compare-pyramid":
+                PyramidCircleDetector.compare(Paths.get(options.get("dir", "data")), CircleParams.from(options));
+                break;
+            default:
+                System.err.println("Unknown mode: " + mode);
+                System.exit(2);
         }
     }
 
-    private static BufferedImage detectSimilarColorRegion(BufferedImage image) {
-        List<PointRegion> pointRegions = new ArrayList<>();
+    private static void runBatch(Options options) throws IOException, InterruptedException {
+        int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        // By default keep at most two decoded images per worker in memory
+        int maxInFlight = options.getInt("max-in-flight", threads * 2);
 
-        int[] offset = {-1, 0, 1, 0, 0, -1, 0, 1, 1, 1, -1, -1, 1, -1, -1, 1};
+        String detector = options.get("detector", "circles");
+        // Only print the counts, without writing annotated images
+        boolean countOnly = options.getBoolean("count-only", false);
 
-        // Initialization
-        boolean[][] markCnt = new boolean[image.getWidth()][image.getHeight()];
-        PointRegion.PointAttribute[][] pointAttributes = new PointRegion.PointAttribute[image.getWidth()][image.getHeight()];
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                pointAttributes[x][y] = new PointRegion.PointAttribute(image.getRGB(x, y), false);
-                markCnt[x][y] = false;
-            }
-        }
+        // Optional results file, see openResults
+        ResultWriter results = openResults(options);
 
-        int[] objectPixelCntSum = new int[100];
-        Arrays.fill(objectPixelCntSum, 0);
+        // Optional persistent result cache, see openCache
+        ResultCache cache = openCache(options);
 
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                // transparent pixel, this pixel doesn't display, skip
-                if (image.getRGB(x, y) == 0)
-                    continue;
-
-                // use bfs to mark all adjacent object pixels to recognize as one object
-                if (!markCnt[x][y]) {
-                    java.awt.Point pos = new java.awt.Point(x, y);
-                    Queue<java.awt.Point> queue = new LinkedList<>();
-                    queue.add(pos);
-
-                    java.awt.Point currPos, nextPos;
-                    while (!queue.isEmpty()) {
-                        currPos = queue.poll();
-                        int xPos = (int) currPos.getX();
-                        int yPos = (int) currPos.getY();
-
-                        // Mark current point as visited
-                        markCnt[xPos][yPos] = true;
-
-                        int nextXPos, nextYPos;
-                        for (int i = 0; i < 16; i += 2) {
-                            nextXPos = xPos + offset[i];
-                            nextYPos = yPos + offset[i+1];
-
-                            // skip invalid pixel position (out of bound or transparent)
-                            if (nextXPos < 0 || nextXPos >= image.getWidth()
-                                    || nextYPos < 0 || nextYPos >= image.getHeight()
-                                    || image.getRGB(nextXPos, nextYPos) == 0) {
-                                continue;
-                            }
-
-                            // skip pixels that have been marked already
-                            if (markCnt[nextXPos][nextYPos]) {
-                                continue;
-                            }
-
-                            // If the current point is has different color from the adjacent point,
-                            // set both points as edges and skip
-                            if (!colorsAreSimilar(image.getRGB(xPos, yPos), image.getRGB(nextXPos, nextYPos), 15)) {
-                                pointAttributes[xPos][yPos].isEdge = true;
-                                pointAttributes[nextXPos][nextYPos].isEdge = true;
-                                image.setRGB(xPos, yPos, Color.BLACK.getRGB());
-//                                image.setRGB(nextXPos, nextYPos, Color.BLACK.getRGB());
-                                continue;
-                            }
-
-                            // The adjacent point is a valid, not visited before, and has similar color
-                            nextPos = new java.awt.Point(nextXPos, nextYPos);
-                            markCnt[nextXPos][nextYPos] = true;
-
-                            queue.add(nextPos);
-                        }
-                    }
-
-//                    if (objectSize >= 800 || objectSize <= 3) {
-//                        objectCnt--;
-//                        while (!resumeQ.isEmpty()) {
-//                            image.setRGB((int)resumeQ.peek().getX(), (int)resumeQ.peek().getY(), Color.BLACK.getRGB());
-//                            resumeQ.poll();
-//                        }
-//                    } else {
-//                        while (!resumeQ.isEmpty()) {
-//                            image.setRGB((int)resumeQ.peek().getX(), (int)resumeQ.peek().getY(), Color.RED.getRGB());
-//                            resumeQ.poll();
-//                        }
-//                    }
-//                    if (objectSize >= 100)
-//                        objectPixelCntSum[objectPixelCntSum.length-1]++;
-//                    else
-//                        objectPixelCntSum[objectSize]++;
-                }
+        // Optional subsampled or cropped decoding, see ImageDecoder.from
+        Object params = Detectors.params(detector, options);
+        ImageDecoder decoder = ImageDecoder.from(options, detector, params);
+
+        try {
+            new BatchProcessor(threads, maxInFlight, detector, params, decoder, countOnly, results, cache)
+                    .run(Paths.get(options.get("dir", "data")));
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+            if (cache != null) {
+                cache.close();
             }
         }
-
-        return image;
     }
 
-    private static BufferedImage naiveDetect(BufferedImage image) {
-        boolean[][] isObject = new boolean[image.getWidth()][image.getHeight()];
-        boolean[][] markCnt = new boolean[image.getWidth()][image.getHeight()];
-        int objectCnt = 0;
-        int percentage = 0;
-
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                // init markCnt to all false
-                markCnt[x][y] =false;
-
-                // perform similarity check
-                isObject[x][y] = colorsAreSimilar(new Color(image.getRGB(x, y)), Color.decode("#D7D4C3"), 80);
-            }
+    /**
+     * The results file selected with --results file [--results-format jsonl|binary] [--resume],
+     * or null. With --resume the file is continued after its last complete record.
+     */
+    static ResultWriter openResults(Options options) throws IOException {
+        if (!options.has("results")) {
+            return null;
+        }
+        boolean binary = "binary".equals(options.get("results-format", "jsonl"));
+        ResultWriter results = ResultWriter.open(Paths.get(options.get("results", null)), binary,
+                options.getBoolean("resume", false));
+        if (results.completedCount() > 0) {
+            System.out.println("Resuming after " + results.completedCount() + " results");
         }
+        return results;
+    }
 
-        int[] offset = {-1, 0, 1, 0, 0, -1, 0, 1, 1, 1, -1, -1, 1, -1, -1, 1};
-        int[] objectPixelCntSum = new int[100];
-        Arrays.fill(objectPixelCntSum, 0);
-
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                if (isObject[x][y]) {
-                    image.setRGB(x, y, Color.WHITE.getRGB());
-
-                    // use bfs to mark all adjacent object pixels to recognize as one object
-                    if (!markCnt[x][y]) {
-                        objectCnt++;
-                        AbstractMap.SimpleEntry<Integer, Integer> pos =
-                                new AbstractMap.SimpleEntry<Integer, Integer>(x, y);
-                        Queue<AbstractMap.SimpleEntry<Integer, Integer>> queue = new LinkedList<>();
-                        Queue<AbstractMap.SimpleEntry<Integer, Integer>> resumeQ = new LinkedList<>();
-                        queue.add(pos);
-
-                        int objectSize = 0;
-                        while (!queue.isEmpty()) {
-                            AbstractMap.SimpleEntry<Integer, Integer> currPos = queue.poll();
-                            int xPos = currPos.getKey();
-                            int yPos = currPos.getValue();
-
-                            // skip invalid pixel position
-                            if (xPos < 0 || xPos >= image.getWidth() || yPos < 0 || yPos >= image.getHeight())
-                                continue;
-
-                            // skip not object pixels
-                            if (!isObject[xPos][yPos])
-                                continue;
-
-                            // skip pixels that have been marked already
-                            if (markCnt[xPos][yPos])
-                                continue;
-
-                            objectSize++;
-                            markCnt[xPos][yPos] = true;
-                            resumeQ.add(currPos);
-
-                            for (int i = 0; i < 16; i += 2) {
-                                queue.add(new AbstractMap.SimpleEntry<Integer, Integer>(xPos + offset[i], yPos + offset[i+1]));
-                            }
-                        }
-                        if (objectSize >= 150 || objectSize <= 10) {
-                            objectCnt--;
-                            while (!resumeQ.isEmpty()) {
-                                isObject[resumeQ.peek().getKey()][resumeQ.peek().getValue()] = false;
-                                image.setRGB(resumeQ.peek().getKey(), resumeQ.peek().getValue(), Color.BLACK.getRGB());
-                                resumeQ.poll();
-                            }
-                        }
-                        if (objectSize >= 100)
-                            objectPixelCntSum[objectPixelCntSum.length-1]++;
-                        else
-                            objectPixelCntSum[objectSize]++;
-                    }
-                } else {
-                    image.setRGB(x, y, Color.BLACK.getRGB());
-                }
-            }
+    /**
+     * The result cache selected with --cache file [--cache-size-mb 64], or null.
+     */
+    static ResultCache openCache(Options options) throws IOException {
+        if (!options.has("cache")) {
+            return null;
+        }
+        int sizeMb = options.getInt("cache-size-mb", 64);
+        if (sizeMb < 1 || sizeMb > 2047) {
+            throw new IllegalArgumentException("cache-size-mb must be between 1 and 2047");
         }
-        int len = objectPixelCntSum.length;
+        return new ResultCache(Paths.get(options.get("cache", null)), sizeMb << 20);
+    }
 
-        return image;
+    /**
+     * Runs the named detector on image and returns what it found. This is the count-only
+     * path: the image is never modified and nothing is drawn, use {@link Annotator} to
+     * render a result on demand. params are the detector's own, see {@link Detectors#params}.
+     */
+    static DetectionResult count(String detector, BufferedImage image, Object params) {
+        return count(detector, new Preprocessed(image), params);
     }
 
-    private static BufferedImage detectIgnoreBackground(BufferedImage image) {
-        boolean[][] isObject = new boolean[image.getWidth()][image.getHeight()];
-        boolean[][] markCnt = new boolean[image.getWidth()][image.getHeight()];
-        int objectCnt = 0;
-        int percentage = 0;
-
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                // init markCnt to all false
-                markCnt[x][y] =false;
-
-                // perform similarity check on non-transparent pixels
-                if (image.getRGB(x, y) != 0)
-                    // If not background color, then it is object
-                    isObject[x][y] = !colorsAreSimilar(new Color(image.getRGB(x, y)), Color.decode("#8F9392"), 100);
-            }
+    /**
+     * Same as {@link #count(String, BufferedImage, Object)}, reusing the grayscale, blurred
+     * and mask images already computed for the image. Pass the same instance to
+     * {@link Annotator#annotate(Preprocessed, DetectionResult, Object)} to share them with
+     * the annotation.
+     */
+    static DetectionResult count(String detector, Preprocessed image, Object params) {
+        Metrics.Span span = Metrics.begin("detect");
+        try {
+            return Detectors.detect(detector, image, params);
+        } finally {
+            span.end();
         }
+    }
 
-        int[] offset = {-1, 0, 1, 0, 0, -1, 0, 1, 1, 1, -1, -1, 1, -1, -1, 1};
-        int[] objectPixelCntSum = new int[100];
-        Arrays.fill(objectPixelCntSum, 0);
+    // plate.1.jpg -> plate.1_circle.out, only the extension of the file name is replaced
+    static File outputFileFor(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(file.getParentFile(), baseName + "_circle" + OUTPUT_SUFFIX);
+    }
+
+    // plate.1.jpg -> plate.1_circle.key.out, the cache key the annotated image was drawn for
+    static File keyFileFor(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(file.getParentFile(), baseName + "_circle.key" + OUTPUT_SUFFIX);
+    }
 
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
+    /**
+     * Splits the image into regions of adjacent, similarly colored pixels. Pixels with a
+     * dissimilar neighbour count as edge pixels of their region, transparent pixels belong
+     * to no region. Only regions with minArea < area < maxArea pixels are built, so the
+     * many tiny components of a noisy image cost no objects.
+     */
+    static List<Region> detectSimilarColorRegion(BufferedImage image, int minArea, int maxArea) {
+        PixelView view = PixelView.of(image);
+        final int width = view.getWidth();
+        final int height = view.getHeight();
+        final int[] pixels = view.toArray();
+        final BitMask isEdge = new BitMask(width, height);
+
+        // Adjacent pixels with similar color form one region, every dissimilar
+        // pair of neighbours marks both pixels as edges
+        ComponentLabeler.Components components = ComponentLabeler.label(width, height, new ComponentLabeler.Linker() {
+            @Override
+            public boolean include(int index) {
                 // transparent pixel, this pixel doesn't display, skip
-                if (image.getRGB(x, y) == 0)
-                    continue;
-
-                if (isObject[x][y]) {
-                    // use bfs to mark all adjacent object pixels to recognize as one object
-                    if (!markCnt[x][y]) {
-                        objectCnt++;
-                        AbstractMap.SimpleEntry<Integer, Integer> pos =
-                                new AbstractMap.SimpleEntry<Integer, Integer>(x, y);
-                        Queue<AbstractMap.SimpleEntry<Integer, Integer>> queue = new LinkedList<>();
-                        Queue<AbstractMap.SimpleEntry<Integer, Integer>> resumeQ = new LinkedList<>();
-                        queue.add(pos);
-
-                        int objectSize = 0;
-                        AbstractMap.SimpleEntry<Integer, Integer> currPos, nextPos;
-                        while (!queue.isEmpty()) {
-                            currPos = queue.poll();
-                            int xPos = currPos.getKey();
-                            int yPos = currPos.getValue();
-                            int nextXPos, nextYPos;
-
-
-                            if (objectSize > 20)
-                                objectSize = objectSize;
-
-                            for (int i = 0; i < 16; i += 2) {
-                                nextXPos = xPos + offset[i];
-                                nextYPos = yPos + offset[i+1];
-
-                                // skip invalid pixel position (out of bound or transparent)
-                                if (nextXPos < 0 || nextXPos >= image.getWidth()
-                                        || nextYPos < 0 || nextYPos >= image.getHeight()
-                                        || image.getRGB(nextXPos, nextYPos) == 0)
-                                    continue;
-
-                                // skip not object pixels
-                                if (!isObject[nextXPos][nextYPos])
-                                    continue;
-
-                                // skip pixels that have been marked already
-                                if (markCnt[nextXPos][nextYPos])
-                                    continue;
-
-                                nextPos = new AbstractMap.SimpleEntry<Integer, Integer>(nextXPos, nextYPos);
-                                objectSize++;
-                                resumeQ.add(nextPos);
-                                markCnt[nextXPos][nextYPos] = true;
-
-                                queue.add(nextPos);
-                            }
-                        }
-                        if (objectSize >= 800 || objectSize <= 3) {
-                            objectCnt--;
-                            while (!resumeQ.isEmpty()) {
-                                isObject[resumeQ.peek().getKey()][resumeQ.peek().getValue()] = false;
-                                image.setRGB(resumeQ.peek().getKey(), resumeQ.peek().getValue(), Color.BLACK.getRGB());
-                                resumeQ.poll();
-                            }
-                        } else {
-                            while (!resumeQ.isEmpty()) {
-                                image.setRGB(resumeQ.peek().getKey(), resumeQ.peek().getValue(), Color.RED.getRGB());
-                                resumeQ.poll();
-                            }
-                        }
-                        if (objectSize >= 100)
-                            objectPixelCntSum[objectPixelCntSum.length-1]++;
-                        else
-                            objectPixelCntSum[objectSize]++;
-                    }
-                } else {
-                    image.setRGB(x, y, Color.BLACK.getRGB());
+                return pixels[index] != 0;
+            }
+
+            @Override
+            public boolean link(int index, int neighbourIndex) {
+                if (colorsAreSimilar(pixels[index], pixels[neighbourIndex], 15)) {
+                    return true;
                 }
+                isEdge.set(index);
+                isEdge.set(neighbourIndex);
+                return false;
+            }
+        });
+
+        // The labeler already knows every area, regions are only built for the accepted labels
+        List<Region> regions = new ArrayList<>();
+        Region[] byLabel = new Region[components.count() + 1];
+        for (int label = 1; label <= components.count(); label++) {
+            int area = components.area(label);
+            if (area > minArea && area < maxArea) {
+                byLabel[label] = new Region();
+                regions.add(byLabel[label]);
             }
         }
-        int len = objectPixelCntSum.length;
-
-        return image;
+        // Scan order keeps every row of a region in as few runs as possible
+        int[] labels = components.labels();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                Region region = byLabel[labels[i]];
+                if (region != null) {
+                    region.add(x, y, pixels[i], isEdge.get(i));
+                }
+            }
+        }
+        for (Region region : regions) {
+            region.trimToSize();
+        }
+        return regions;
     }
 
 //    private static BufferedImage naiveDetectGrayscale(BufferedImage image) {
@@ -346,114 +247,13 @@ public class Main {
 //            }
 //        }
 //    }
-    private static BufferedImage detectEdges(BufferedImage image) {
-            /* convert bitmap to mat */
-        Mat mat = colorImageToMat(image);
-        Mat grayMat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC1);
-
-                /* convert to grayscale */
-        int colorChannels = (mat.channels() == 3 || mat.channels() == 4) ? Imgproc.COLOR_BGR2GRAY : 1;
-
-        Imgproc.cvtColor(mat, grayMat, colorChannels);
-        //        Imgproc.equalizeHist(grayMat, grayMat);
-        Imgproc.blur(grayMat, grayMat, new Size(7, 7));
-        Imgproc.Canny(grayMat, grayMat, CANNY_LOW_THREASHOLD, CANNY_LOW_THREASHOLD*3, 3, false);
-            /* reduce the noise so we avoid false circle detection */
-//        Imgproc.dilate(grayMat, grayMat, new Mat());
-//        Imgproc.erode(grayMat, grayMat, new Mat());
-
-            /* convert back to buffered image */
-        BufferedImage result = matToBufferedImage(grayMat);
-        return result;
-    }
-
-    private static BufferedImage detectContours(BufferedImage image) {
-        /* convert bitmap to mat */
-        Mat mat = colorImageToMat(image);
-        Mat grayMat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC1);
-
-            /* convert to grayscale */
-        int colorChannels = (mat.channels() == 3 || mat.channels() == 4) ? Imgproc.COLOR_BGR2GRAY : 1;
-
-        Imgproc.cvtColor(mat, grayMat, colorChannels);
-    //        Imgproc.equalizeHist(grayMat, grayMat);
-        Imgproc.blur(grayMat, grayMat, new Size(7, 7));
-        Imgproc.Canny(grayMat, grayMat, CANNY_LOW_THREASHOLD, CANNY_LOW_THREASHOLD*3, 3, false);
-        /* reduce the noise so we avoid false circle detection */
-        Imgproc.dilate(grayMat, grayMat, new Mat());
-        Imgproc.erode(grayMat, grayMat, new Mat());
-
-        /* create a Mat object to store the circles detected */
-        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-        Imgproc.findContours(grayMat, contours, new Mat(), Imgproc.RETR_LIST,Imgproc.CHAIN_APPROX_SIMPLE);
-        Imgproc.drawContours(mat, contours, -1, new Scalar(0,0,255));
-//        for(int i=0; i< contours.size();i++){
-////            System.out.println(Imgproc.contourArea(contours.get(i)));
-//            Rect rect = Imgproc.boundingRect(contours.get(i));
-//            Imgproc.rectangle(mat, new Point(rect.x,rect.y), new Point(rect.x+rect.width,rect.y+rect.height),new Scalar(0,0,255));
-//        }
-        /* convert back to buffered image */
-        BufferedImage result = matToBufferedImage(mat);
-        return result;
-    }
-
-    private static BufferedImage detectCircles(BufferedImage image) {
-        // Used to draw on the image
-        Graphics2D imageGraphics = (Graphics2D) image.getGraphics();
-
-        // Compute color similarity first
-        boolean[][] isObject = new boolean[image.getWidth()][image.getHeight()];
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                if (image.getRGB(x, y) == 0) {
-                    isObject[x][y] = false;
-                    continue;
-                }
-                isObject[x][y] = colorsAreSimilar(image.getRGB(x, y), Color.decode("#CDCAB9").getRGB(), 100);
-            }
-        }
-
-        /* convert bitmap to mat */
-        Mat mat = colorImageToMat(image);
-        Mat grayMat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC1);
-
-        /* convert to grayscale */
-        int colorChannels = (mat.channels() == 3 || mat.channels() == 4) ? Imgproc.COLOR_BGR2GRAY : 1;
-
-        Imgproc.cvtColor(mat, grayMat, colorChannels);
-//        Imgproc.equalizeHist(grayMat, grayMat);
-            /* reduce the noise so we avoid false circle detection */
-//        Imgproc.dilate(grayMat, grayMat, new Mat());
-//        Imgproc.GaussianBlur(grayMat, grayMat, new Size(5, 5), 2, 2);
-        Imgproc.blur(grayMat, grayMat, new Size(5, 5));
-
-        // accumulator value
-        double dp = 1;
-        // minimum distance between the center coordinates of detected circles in pixels
-        double minDist = 20;
-
-        // min and max radii (set these values as you desire)
-        int minRadius = 20, maxRadius = 40;
-
-        // param1 = gradient value used to handle edge detection
-        // param2 = Accumulator threshold value for the
-        // cv2.CV_HOUGH_GRADIENT method.
-        // The smaller the threshold is, the more circles will be
-        // detected (including false circles).
-        // The larger the threshold is, the more circles will
-        // potentially be returned.
-        double param1 = 40, param2 = 10;
-
-        /* create a Mat object to store the circles detected */
-        Mat circles = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC1);
-
-        /* find the circle in the image */
-        Imgproc.HoughCircles(grayMat, circles, Imgproc.CV_HOUGH_GRADIENT, dp, minDist, param1,
-                param2, minRadius, maxRadius);
 
+    /**
+     * Adds the Hough circles with enough object pixels to result and rejects the others.
+     */
+    static void verifyCircles(Mat circles, CircleVerifier verifier, CircleParams params, DetectionResult result) {
         /* get the number of circles detected */
         int numberOfCircles = circles.cols();
-        /* draw the circles found on the image */
         for (int i=0; i<numberOfCircles; i++) {
             /* get the circle details, circleCoordinates[0, 1, 2] = (x,y,r)
              * (x,y) are the coordinates of the circle's center
@@ -461,82 +261,87 @@ public class Main {
             double[] circleCoordinates = circles.get(0, i);
 
             int x = (int) circleCoordinates[0], y = (int) circleCoordinates[1];
-            Point center = new Point(x, y);
-
             int radius = (int) circleCoordinates[2];
 
-            // Take random points in the circle and evaluate how many points have a similar color to the object
+            // Evaluate how many pixels in the circle have a similar color to the object
             int area = (int) (Math.PI * radius * radius);
-            int numOfRandomPoints = area / 10;
-            double randomAngle, randomR;
-            int randomX, randomY;
-            int numOfObjectPoints = 0;
-            for (int n = 0; n < numOfRandomPoints; n++) {
-                randomAngle = 2 * Math.PI * Math.random();
-                randomR = radius * Math.sqrt(Math.random());
-                randomX = (int) (x + randomR * Math.cos(randomAngle));
-                randomY = (int) (y + randomR * Math.sin(randomAngle));
-                // Ignore out of bound points
-                if (randomX < 0 || randomX >= image.getWidth() || randomY < 0 || randomY >= image.getHeight()) {
-                    n--;
-                    continue;
-                }
-                if (isObject[randomX][randomY]) {
-                    numOfObjectPoints++;
-                    image.setRGB(randomX, randomY, Color.GREEN.getRGB());
-                } else {
-                    image.setRGB(randomX, randomY, Color.RED.getRGB());
-                }
+            double objectRatio = verifier.objectRatio(x, y, radius);
+
+            /* Count the circle when it is more likely to be an object */
+            if (objectRatio > params.getMinObjectRatio()) {
+                result.add(new DetectionResult.DetectedObject(circleCoordinates[0], circleCoordinates[1],
+                        circleCoordinates[2], area));
+            } else {
+                result.reject();
             }
+        }
+    }
 
-            /* Draw circle's outline when it is more likely to be an object */
-//            if ((double) numOfObjectPoints / numOfRandomPoints > 0.6) {
-                imageGraphics.setColor(Color.BLACK);
-                imageGraphics.drawOval(x-radius, y-radius, radius * 2, radius * 2);
-//            }
+    /**
+     * Grayscale, blur and Hough transform of an image Mat. The returned 1xN Mat of (x, y, r)
+     * triples is owned by the caller and has to be released.
+     */
+    static Mat houghCircles(Mat mat, CircleParams params) {
+        Mat grayMat = MatBridge.pooled("gray", mat.rows(), mat.cols(), CvType.CV_8UC1);
+
+        /* convert to grayscale */
+        toGray(mat, grayMat);
+//        Imgproc.equalizeHist(grayMat, grayMat);
+            /* reduce the noise so we avoid false circle detection */
+//        Imgproc.dilate(grayMat, grayMat, new Mat());
+//        Imgproc.GaussianBlur(grayMat, grayMat, new Size(5, 5), 2, 2);
+        Metrics.Span span = Metrics.begin("blur");
+        try {
+            Imgproc.blur(grayMat, grayMat, new Size(params.getBlurSize(), params.getBlurSize()));
+        } finally {
+            span.end();
         }
 
-        return image;
+        return findCircles(grayMat, params);
     }
 
-    // Put image data into a matrix
-    private static Mat colorImageToMat(BufferedImage image) {
-        Mat mat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
-        mat.put(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
-        return mat;
-    }
+    /**
+     * Hough transform of an already blurred grayscale Mat, which is only read.
+     */
+    static Mat findCircles(Mat grayMat, CircleParams params) {
+        /* create a Mat object to store the circles detected */
+        Mat circles = new Mat();
 
-    private static BufferedImage matToBufferedImage(Mat mat) {
-        byte[] data = new byte[mat.rows() * mat.cols() * (int)(mat.elemSize())];
-        mat.get(0, 0, data);
-        int imageType;
-        if(mat.channels() == 1) {
-            imageType = BufferedImage.TYPE_BYTE_GRAY;
-        } else {
-            imageType = BufferedImage.TYPE_3BYTE_BGR;
+        /* find the circle in the image */
+        Metrics.Span span = Metrics.begin("hough");
+        try {
+            Imgproc.HoughCircles(grayMat, circles, Imgproc.CV_HOUGH_GRADIENT, params.getDp(), params.getMinDist(),
+                    params.getParam1(), params.getParam2(), params.getMinRadius(), params.getMaxRadius());
+        } finally {
+            span.end();
         }
+        return circles;
+    }
 
-        BufferedImage image = new BufferedImage(mat.cols(), mat.rows(), imageType);
-        image.getRaster().setDataElements(0, 0, mat.cols(), mat.rows(), data);
-        return image;
+    // Grayscale conversion for the 1, 3 or 4 channel Mats produced by MatBridge
+    static void toGray(Mat mat, Mat grayMat) {
+        Metrics.Span span = Metrics.begin("gray");
+        try {
+            if (mat.channels() == 1) {
+                mat.copyTo(grayMat);
+            } else {
+                Imgproc.cvtColor(mat, grayMat, mat.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+            }
+        } finally {
+            span.end();
+        }
     }
 
 
     // use CIE76 ΔE*ab to compute color similarity
+    // compares squared distances, sqrt(d) < maxDelta <=> d < maxDelta^2
     public static boolean colorsAreSimilar(int rgb1, int rgb2, int maxDelta) {
-        return colorsAreSimilar(new Color(rgb1), new Color(rgb2), maxDelta);
+        return ColorMask.distanceSquared(rgb1, rgb2) < ColorMask.similarityLimit(maxDelta);
     }
 
     // use CIE76 ΔE*ab to compute color similarity
     // a and b are RGB values
     public static boolean colorsAreSimilar(Color a, Color b, int maxDelta) {
-
-        int redDiff = a.getRed() - b.getRed();
-        int blueDiff = a.getBlue() - b.getBlue();
-        int greenDiff = a.getGreen() - b.getGreen();
-
-        double deltaE = Math.sqrt(2*redDiff*redDiff + 4*blueDiff*blueDiff + 3*greenDiff*greenDiff);
-//        System.out.println("deltaE: " + deltaE);
-        return deltaE < maxDelta;
+        return colorsAreSimilar(a.getRGB(), b.getRGB(), maxDelta);
     }
 }
@@ -0,0 +1,243 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts between BufferedImage and Mat without intermediate images.
+ *
+ * Color images become 8-bit BGR Mats and gray images 8-bit single channel Mats. Mats and
+ * byte buffers are pooled per thread: a pooled Mat keeps its native memory until the
+ * next request for the same slot on the same thread, so callers must not hold on to it.
+ * Each slot keeps a single Mat that is reallocated when the size or type changes, which
+ * keeps native memory bounded when image sizes vary within a batch.
+ */
+public class MatBridge {
+    public static final String IMAGE_SLOT = "image";
+
+    private static final ThreadLocal<Map<String, Mat>> MATS = new ThreadLocal<Map<String, Mat>>() {
+        @Override
+        protected Map<String, Mat> initialValue() {
+            return new HashMap<>();
+        }
+    };
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<>();
+
+    /**
+     * Returns this thread's Mat for the slot, allocated with the given size and type.
+     */
+    public static Mat pooled(String slot, int rows, int cols, int type) {
+        OpenCv.load();
+        Map<String, Mat> mats = MATS.get();
+        Mat mat = mats.get(slot);
+        if (mat == null) {
+            mat = new Mat(rows, cols, type);
+            mats.put(slot, mat);
+            Metrics.nativeAllocated(slot, (long) rows * cols * CvType.ELEM_SIZE(type));
+        } else if (mat.rows() != rows || mat.cols() != cols || mat.type() != type) {
+            mat.create(rows, cols, type);
+            Metrics.nativeAllocated(slot, (long) rows * cols * CvType.ELEM_SIZE(type));
+        }
+        return mat;
+    }
+
+    // This thread's scratch buffer, grown when needed and never shrunk. Mat.put copies at
+    // most one Mat worth of data but requires whole pixels, so the length is kept a
+    // multiple of three for both gray and BGR Mats.
+    private static byte[] pooledBytes(int length) {
+        byte[] buffer = BUFFER.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[(length + 2) / 3 * 3];
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Frees the native memory of all Mats pooled by the current thread.
+     */
+    public static void releaseThread() {
+        Map<String, Mat> mats = MATS.get();
+        for (Mat mat : mats.values()) {
+            mat.release();
+        }
+        mats.clear();
+        BUFFER.remove();
+    }
+
+    /**
+     * Thread factory for worker pools whose threads free their pooled Mats and image
+     * readers when they exit.
+     */
+    public static ThreadFactory releasingThreadFactory() {
+        return task -> new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                releaseThread();
+                ImageDecoder.releaseThread();
+            }
+        });
+    }
+
+    public static void release(Mat... mats) {
+        for (Mat mat : mats) {
+            if (mat != null) {
+                mat.release();
+            }
+        }
+    }
+
+    /**
+     * Copies the image into this thread's pooled image Mat.
+     */
+    public static Mat toMat(BufferedImage image) {
+        return toMat(image, IMAGE_SLOT);
+    }
+
+    public static Mat toMat(BufferedImage image, String slot) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                Mat mat = pooled(slot, height, width, CvType.CV_8UC3);
+                putBytes(mat, raster, width * 3);
+                return mat;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                Mat mat = pooled(slot, height, width, CvType.CV_8UC1);
+                putBytes(mat, raster, width);
+                return mat;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                // ABGR -> BGR, alpha is dropped
+                Mat mat = pooled(slot, height, width, CvType.CV_8UC3);
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int scanline = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                int base = byteBase(raster, scanline, 4);
+                byte[] bgr = pooledBytes(width * height * 3);
+                int j = 0;
+                for (int y = 0; y < height; y++) {
+                    int i = base + y * scanline;
+                    for (int x = 0; x < width; x++, i += 4) {
+                        bgr[j++] = data[i + 1];
+                        bgr[j++] = data[i + 2];
+                        bgr[j++] = data[i + 3];
+                    }
+                }
+                mat.put(0, 0, bgr);
+                return mat;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_BGR: {
+                Mat mat = pooled(slot, height, width, CvType.CV_8UC3);
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int scanline = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                int base = raster.getDataBuffer().getOffset()
+                        - raster.getSampleModelTranslateY() * scanline - raster.getSampleModelTranslateX();
+                boolean swap = image.getType() == BufferedImage.TYPE_INT_BGR;
+                byte[] bgr = pooledBytes(width * height * 3);
+                int j = 0;
+                for (int y = 0; y < height; y++) {
+                    int i = base + y * scanline;
+                    for (int x = 0; x < width; x++) {
+                        int pixel = data[i + x];
+                        int blue = swap ? pixel >> 16 : pixel;
+                        int red = swap ? pixel : pixel >> 16;
+                        bgr[j++] = (byte) blue;
+                        bgr[j++] = (byte) (pixel >> 8);
+                        bgr[j++] = (byte) red;
+                    }
+                }
+                mat.put(0, 0, bgr);
+                return mat;
+            }
+            default: {
+                // Indexed, 16-bit, premultiplied and custom images go through the ColorModel, which
+                // also divides premultiplied colors by alpha like getRGB
+                Mat mat = pooled(slot, height, width, CvType.CV_8UC3);
+                PixelView view = PixelView.of(image);
+                byte[] bgr = pooledBytes(width * height * 3);
+                int[] row = new int[width];
+                int j = 0;
+                for (int y = 0; y < height; y++) {
+                    view.readRow(y, row, 0);
+                    for (int x = 0; x < width; x++) {
+                        bgr[j++] = (byte) row[x];
+                        bgr[j++] = (byte) (row[x] >> 8);
+                        bgr[j++] = (byte) (row[x] >> 16);
+                    }
+                }
+                mat.put(0, 0, bgr);
+                return mat;
+            }
+        }
+    }
+
+    // Interleaved byte rasters can go to the Mat in one copy when they are not a sub-image
+    private static void putBytes(Mat mat, WritableRaster raster, int rowBytes) {
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        int scanline = sampleModel.getScanlineStride();
+        int base = byteBase(raster, scanline, sampleModel.getPixelStride());
+        int height = raster.getHeight();
+
+        if (base == 0 && scanline == rowBytes && data.length == rowBytes * height) {
+            mat.put(0, 0, data);
+            return;
+        }
+        byte[] packed = pooledBytes(rowBytes * height);
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(data, base + y * scanline, packed, y * rowBytes, rowBytes);
+        }
+        mat.put(0, 0, packed);
+    }
+
+    private static int byteBase(WritableRaster raster, int scanline, int pixelStride) {
+        return raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * scanline
+                - raster.getSampleModelTranslateX() * pixelStride;
+    }
+
+    /**
+     * Copies an 8-bit, one or three channel Mat into a new image.
+     */
+    public static BufferedImage toBufferedImage(Mat mat) {
+        return toBufferedImage(mat, null);
+    }
+
+    /**
+     * Copies an 8-bit, one or three channel Mat into reuse when it has the matching size and
+     * type, otherwise into a new image. The Mat is read straight into the image's raster.
+     */
+    public static BufferedImage toBufferedImage(Mat mat, BufferedImage reuse) {
+        int imageType;
+        if (mat.channels() == 1) {
+            imageType = BufferedImage.TYPE_BYTE_GRAY;
+        } else if (mat.channels() == 3) {
+            imageType = BufferedImage.TYPE_3BYTE_BGR;
+        } else {
+            throw new IllegalArgumentException("Unsupported number of channels: " + mat.channels());
+        }
+
+        BufferedImage image = reuse;
+        if (image == null || image.getType() != imageType
+                || image.getWidth() != mat.cols() || image.getHeight() != mat.rows()
+                || image.getRaster().getParent() != null) {
+            image = new BufferedImage(mat.cols(), mat.rows(), imageType);
+        }
+        mat.get(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+}
@@ -0,0 +1,270 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-stage latency histograms, allocated heap bytes and native Mat bytes.
+ *
+ * Stages are measured with spans:
+ *
+ *   Metrics.Span span = Metrics.begin("hough");
+ *   try {
+ *       ...
+ *   } finally {
+ *       span.end();
+ *   }
+ *
+ * When metrics are disabled, begin returns a shared no-op span, so an instrumented stage
+ * costs one volatile read. When enabled, each span also emits an easycount.Stage JFR
+ * event, which is recorded if a flight recording with that event is running, and native
+ * Mat allocations emit easycount.MatAllocation events.
+ */
+public class Metrics {
+    private static volatile boolean enabled = Boolean.getBoolean("easycount.metrics");
+
+    private static final Map<String, StageStats> STAGES = new ConcurrentHashMap<>();
+    private static final LongAdder NATIVE_BYTES = new LongAdder();
+    private static final LongAdder NATIVE_ALLOCATIONS = new LongAdder();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_SUPPORTED = THREADS instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported();
+
+    private static final Span NOOP = new Span(null);
+
+    @Name("easycount.Stage")
+    @Label("Detection Stage")
+    @Category("Easy Count")
+    @Description("One stage of decoding, detecting or encoding an image")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    @Name("easycount.MatAllocation")
+    @Label("Mat Allocation")
+    @Category("Easy Count")
+    @Description("Native memory allocated for a Mat")
+    static class MatAllocationEvent extends Event {
+        @Label("Slot")
+        String slot;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    public static class Span {
+        private final StageStats stats;
+        private final long startNanos;
+        private final long startAllocated;
+        private final StageEvent event;
+
+        private Span(StageStats stats) {
+            this.stats = stats;
+            if (stats == null) {
+                this.startNanos = 0;
+                this.startAllocated = 0;
+                this.event = null;
+                return;
+            }
+            this.event = new StageEvent();
+            this.event.begin();
+            this.startAllocated = allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        public void end() {
+            if (stats == null) {
+                return;
+            }
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = allocatedBytes() - startAllocated;
+            stats.record(nanos, allocated);
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stats.name;
+                event.allocatedBytes = allocated;
+                event.commit();
+            }
+        }
+    }
+
+    /*
+     * Latency histogram with 4 buckets per power of two of microseconds, so each bucket is
+     * at most 25% wide, up to about 2^42 us.
+     */
+    static class StageStats {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 41 * SUB_BUCKETS;
+
+        final String name;
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos, long allocated) {
+            buckets.incrementAndGet(bucket(nanos / 1000));
+            count.increment();
+            totalNanos.add(nanos);
+            if (allocated > 0) {
+                allocatedBytes.add(allocated);
+            }
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(0, micros);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            // the two bits below the highest one select the sub-bucket
+            int sub = (int) (micros >> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return Math.min(BUCKETS - 1, (exponent - 1) * SUB_BUCKETS + sub);
+        }
+
+        // Upper bound of a bucket in microseconds
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket + 1;
+            }
+            int exponent = bucket / SUB_BUCKETS + 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1)) << (exponent - 2);
+        }
+
+        // Upper bound of the bucket holding the given quantile, in milliseconds
+        double quantileMillis(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i) / 1000.0;
+                }
+            }
+            return 0;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static Span begin(String stage) {
+        if (!enabled) {
+            return NOOP;
+        }
+        return new Span(STAGES.computeIfAbsent(stage, StageStats::new));
+    }
+
+    /**
+     * Records native memory allocated for a Mat, called where Mats are (re)allocated.
+     */
+    public static void nativeAllocated(String slot, long bytes) {
+        if (!enabled) {
+            return;
+        }
+        NATIVE_BYTES.add(bytes);
+        NATIVE_ALLOCATIONS.increment();
+        MatAllocationEvent event = new MatAllocationEvent();
+        if (event.shouldCommit()) {
+            event.slot = slot;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATION_SUPPORTED ? ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Prints the metrics to stdout every periodSeconds on a daemon thread.
+     */
+    public static void startDump(long periodSeconds, boolean json) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> System.out.println(json ? toJson() : toText()),
+                periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public static String toText() {
+        StringBuilder text = new StringBuilder("Metrics:\n");
+        for (StageStats stats : new TreeMap<>(STAGES).values()) {
+            long count = stats.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.ROOT,
+                    "  %-10s n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms alloc=%.1fKB/op%n",
+                    stats.name, count, stats.totalNanos.sum() / 1e6 / count, stats.quantileMillis(0.5),
+                    stats.quantileMillis(0.9), stats.quantileMillis(0.99), stats.maxNanos.get() / 1e6,
+                    stats.allocatedBytes.sum() / 1024.0 / count));
+        }
+        text.append(String.format(Locale.ROOT, "  native Mats: %d allocations, %.1f MB",
+                NATIVE_ALLOCATIONS.sum(), NATIVE_BYTES.sum() / 1e6));
+        return text.toString();
+    }
+
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\"stages\":{");
+        boolean first = true;
+        for (StageStats stats : new TreeMap<>(STAGES).values()) {
+            long count = stats.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append(String.format(Locale.ROOT,
+                    "\"%s\":{\"count\":%d,\"meanMs\":%.3f,\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,"
+                            + "\"maxMs\":%.3f,\"allocatedBytes\":%d}",
+                    stats.name, count, stats.totalNanos.sum() / 1e6 / count, stats.quantileMillis(0.5),
+                    stats.quantileMillis(0.9), stats.quantileMillis(0.99), stats.maxNanos.get() / 1e6,
+                    stats.allocatedBytes.sum()));
+        }
+        return json.append(String.format(Locale.ROOT, "},\"nativeAllocations\":%d,\"nativeBytes\":%d}",
+                NATIVE_ALLOCATIONS.sum(), NATIVE_BYTES.sum())).toString();
+    }
+}
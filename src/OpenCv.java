@@ -0,0 +1,37 @@
+import org.opencv.core.Core;
+
+/**
+ * Loads the OpenCV native library on first use instead of at startup.
+ *
+ * Everything that creates a Mat goes through {@link MatBridge#pooled} or calls
+ * {@link #load()} itself, so runs that only use the pure Java detectors never load the
+ * library. After the first call, load costs one volatile read.
+ */
+public class OpenCv {
+    private static volatile boolean loaded;
+
+    public static void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (OpenCv.class) {
+            if (!loaded) {
+                Metrics.Span span = Metrics.begin("opencv-load");
+                try {
+                    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+                } catch (UnsatisfiedLinkError e) {
+                    // fails the image that needed it like any other detection error
+                    throw new IllegalStateException("Cannot load the OpenCV library " + Core.NATIVE_LIBRARY_NAME
+                            + ", add its directory to -Djava.library.path", e);
+                } finally {
+                    span.end();
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    public static boolean isLoaded() {
+        return loaded;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal "--key value" command line parser shared by the run modes.
+ */
+public class Options {
+    private final Map<String, String> values = new HashMap<>();
+
+    public Options(Map<String, String> values) {
+        this.values.putAll(values);
+    }
+
+    public Options(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            String key = arg.substring(2);
+            // Flags without a value are treated as "true"
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                values.put(key, args[++i]);
+            } else {
+                values.put(key, "true");
+            }
+        }
+    }
+
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * The options as command line arguments, without the excluded keys. Flags are passed
+     * as "--key true", which parses back to the same value.
+     */
+    public List<String> toArgs(Collection<String> excluded) {
+        List<String> args = new ArrayList<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!excluded.contains(entry.getKey())) {
+                args.add("--" + entry.getKey());
+                args.add(entry.getValue());
+            }
+        }
+        return args;
+    }
+}
@@ -0,0 +1,244 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Searches the circle parameters that best reproduce known counts.
+ *
+ * Every labelled image is preprocessed once: the object mask for the circle verification
+ * and one blurred grayscale Mat per blur size of the grid. The Hough parameter grid is then
+ * evaluated in parallel on these shared, read-only intermediates, and each set of Hough
+ * circles is verified with every min-object-ratio of the grid. Parameter sets are ranked
+ * by their mean absolute count error.
+ *
+ * The ground truth file has one "file name,count" line per image, '#' starts a comment.
+ * Grid options take comma separated values, e.g. --param2 8,10,12.
+ */
+public class ParameterSweep {
+    private static class Sample {
+        final String name;
+        final int expected;
+        final CircleVerifier verifier;
+        // blur size -> blurred grayscale image
+        final Map<Integer, Mat> blurred = new LinkedHashMap<>();
+
+        Sample(String name, int expected, CircleVerifier verifier) {
+            this.name = name;
+            this.expected = expected;
+            this.verifier = verifier;
+        }
+    }
+
+    private static class Score {
+        final CircleParams params;
+        final int[] counts;
+        final double meanAbsError;
+        final double meanRelError;
+
+        Score(CircleParams params, int[] counts, List<Sample> samples) {
+            this.params = params;
+            this.counts = counts;
+            double abs = 0, rel = 0;
+            for (int i = 0; i < counts.length; i++) {
+                int expected = samples.get(i).expected;
+                abs += Math.abs(counts[i] - expected);
+                rel += Math.abs(counts[i] - expected) / (double) Math.max(1, expected);
+            }
+            this.meanAbsError = abs / counts.length;
+            this.meanRelError = rel / counts.length;
+        }
+    }
+
+    public static void run(Options options) throws IOException, InterruptedException {
+        if (!options.has("truth")) {
+            throw new IllegalArgumentException("sweep needs --truth <file> with \"file name,count\" lines");
+        }
+        // every step of the sweep works on Mats
+        OpenCv.load();
+        CircleParams d = CircleParams.DEFAULT;
+        double[] dps = doubles(options, "dp", d.getDp());
+        double[] minDists = doubles(options, "min-dist", d.getMinDist());
+        double[] param1s = doubles(options, "param1", d.getParam1());
+        double[] param2s = doubles(options, "param2", d.getParam2());
+        int[] minRadii = ints(options, "min-radius", d.getMinRadius());
+        int[] maxRadii = ints(options, "max-radius", d.getMaxRadius());
+        int[] blurSizes = ints(options, "blur", d.getBlurSize());
+        double[] ratios = doubles(options, "min-object-ratio", d.getMinObjectRatio());
+        int objectRgb = options.has("color") ? Color.decode(options.get("color", null)).getRGB() : d.getObjectRgb();
+        int maxDelta = options.getInt("max-delta", d.getMaxDelta());
+        int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        int top = options.getInt("top", 10);
+
+        long start = System.nanoTime();
+        List<Sample> samples = load(Paths.get(options.get("dir", "data")), Paths.get(options.get("truth", null)),
+                objectRgb, maxDelta, blurSizes, Arrays.stream(maxRadii).max().getAsInt());
+        if (samples.isEmpty()) {
+            System.err.println("No labelled images found");
+            return;
+        }
+        long loaded = System.nanoTime();
+        System.out.println(String.format(Locale.ROOT, "Preprocessed %d images in %.1f s",
+                samples.size(), (loaded - start) / 1e9));
+
+        // One task per Hough configuration, min-object-ratio only changes the verification
+        List<Callable<List<Score>>> tasks = new ArrayList<>();
+        for (int blur : blurSizes)
+            for (double dp : dps)
+                for (double minDist : minDists)
+                    for (double param1 : param1s)
+                        for (double param2 : param2s)
+                            for (int minRadius : minRadii)
+                                for (int maxRadius : maxRadii) {
+                                    if (maxRadius < minRadius) {
+                                        continue;
+                                    }
+                                    List<CircleParams> variants = new ArrayList<>();
+                                    for (double ratio : ratios) {
+                                        variants.add(new CircleParams(dp, minDist, param1, param2, minRadius,
+                                                maxRadius, objectRgb, maxDelta, blur, ratio, false));
+                                    }
+                                    tasks.add(() -> evaluate(samples, variants));
+                                }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Score> scores = new ArrayList<>();
+        try {
+            for (Future<List<Score>> future : pool.invokeAll(tasks)) {
+                scores.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Parameter evaluation failed", e.getCause());
+        } finally {
+            pool.shutdown();
+            for (Sample sample : samples) {
+                MatBridge.release(sample.blurred.values().toArray(new Mat[0]));
+            }
+        }
+        long swept = System.nanoTime();
+        System.out.println(String.format(Locale.ROOT, "Evaluated %d parameter sets in %.1f s with %d threads",
+                scores.size(), (swept - loaded) / 1e9, threads));
+
+        scores.sort((a, b) -> a.meanAbsError != b.meanAbsError
+                ? Double.compare(a.meanAbsError, b.meanAbsError)
+                : Double.compare(a.meanRelError, b.meanRelError));
+        for (int i = 0; i < Math.min(top, scores.size()); i++) {
+            Score score = scores.get(i);
+            System.out.println(String.format(Locale.ROOT, "%2d. mean error %.2f (%.1f%%): %s",
+                    i + 1, score.meanAbsError, score.meanRelError * 100, toOptions(score.params)));
+        }
+
+        if (scores.isEmpty()) {
+            System.err.println("No valid parameter set, every max-radius is below every min-radius");
+            return;
+        }
+        Score best = scores.get(0);
+        System.out.println("Best: " + toOptions(best.params));
+        for (int i = 0; i < samples.size(); i++) {
+            System.out.println(String.format("  %s: expected %d, counted %d",
+                    samples.get(i).name, samples.get(i).expected, best.counts[i]));
+        }
+    }
+
+    private static List<Score> evaluate(List<Sample> samples, List<CircleParams> variants) {
+        CircleParams hough = variants.get(0);
+        int[][] counts = new int[variants.size()][samples.size()];
+        for (int i = 0; i < samples.size(); i++) {
+            Sample sample = samples.get(i);
+            Mat circles = Main.findCircles(sample.blurred.get(hough.getBlurSize()), hough);
+            for (int v = 0; v < variants.size(); v++) {
+                DetectionResult result = new DetectionResult("circles", 0, 0);
+                Main.verifyCircles(circles, sample.verifier, variants.get(v), result);
+                counts[v][i] = result.count();
+            }
+            circles.release();
+        }
+
+        List<Score> scores = new ArrayList<>();
+        for (int v = 0; v < variants.size(); v++) {
+            scores.add(new Score(variants.get(v), counts[v], samples));
+        }
+        return scores;
+    }
+
+    private static List<Sample> load(Path dir, Path truthFile, int objectRgb, int maxDelta, int[] blurSizes,
+                                     int maxRadius) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        for (String line : Files.readAllLines(truthFile, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int comma = line.lastIndexOf(',');
+            if (comma < 0) {
+                throw new IllegalArgumentException("Expected \"file name,count\": " + line);
+            }
+            String name = line.substring(0, comma).trim();
+            int expected = Integer.parseInt(line.substring(comma + 1).trim());
+
+            BufferedImage image = ImageIO.read(dir.resolve(name).toFile());
+            if (image == null) {
+                System.err.println("image is null: " + name);
+                continue;
+            }
+            BitMask isObject = ColorMask.build(PixelView.of(image), objectRgb, maxDelta, true, false);
+            CircleVerifier verifier = new CircleVerifier(isObject);
+            // Hough radii never exceed maxRadius, so the verifier is read-only from here on
+            verifier.prepare(maxRadius);
+            Sample sample = new Sample(name, expected, verifier);
+
+            Mat gray = new Mat();
+            Main.toGray(MatBridge.toMat(image), gray);
+            for (int blur : blurSizes) {
+                Mat blurred = new Mat();
+                Imgproc.blur(gray, blurred, new Size(blur, blur));
+                sample.blurred.put(blur, blurred);
+            }
+            gray.release();
+            samples.add(sample);
+        }
+        // The pooled image Mat of this thread is not needed for the sweep
+        MatBridge.releaseThread();
+        return samples;
+    }
+
+    private static String toOptions(CircleParams params) {
+        return String.format(Locale.ROOT,
+                "--dp %s --min-dist %s --param1 %s --param2 %s --min-radius %d --max-radius %d --blur %d --min-object-ratio %s",
+                params.getDp(), params.getMinDist(), params.getParam1(), params.getParam2(),
+                params.getMinRadius(), params.getMaxRadius(), params.getBlurSize(), params.getMinObjectRatio());
+    }
+
+    private static double[] doubles(Options options, String key, double defaultValue) {
+        if (!options.has(key)) {
+            return new double[]{defaultValue};
+        }
+        return Arrays.stream(options.get(key, null).split(",")).mapToDouble(v -> Double.parseDouble(v.trim())).toArray();
+    }
+
+    private static int[] ints(Options options, String key, int defaultValue) {
+        if (!options.has(key)) {
+            return new int[]{defaultValue};
+        }
+        return Arrays.stream(options.get(key, null).split(",")).mapToInt(v -> Integer.parseInt(v.trim())).toArray();
+    }
+}
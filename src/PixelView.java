@@ -0,0 +1,232 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Row-major access to the packed ARGB pixels of a BufferedImage.
+ *
+ * The common byte and int backed image types are read and written straight from their
+ * data buffer; all other types fall back to getRGB/setRGB. Values have the same
+ * meaning as {@link BufferedImage#getRGB(int, int)}, so opaque image types always
+ * report an alpha of 0xFF.
+ */
+public abstract class PixelView {
+    protected final int width;
+    protected final int height;
+
+    protected PixelView(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public static PixelView of(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return new ByteView(image, raster, false);
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return new ByteView(image, raster, true);
+            case BufferedImage.TYPE_INT_RGB:
+                return new IntView(image, raster, false);
+            case BufferedImage.TYPE_INT_ARGB:
+                return new IntView(image, raster, true);
+            default:
+                // Gray, indexed and premultiplied images need a ColorModel conversion
+                return new GenericView(image);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public abstract int get(int x, int y);
+
+    public abstract void set(int x, int y, int argb);
+
+    /**
+     * Copies one row of packed ARGB pixels into row, starting at offset.
+     */
+    public void readRow(int y, int[] row, int offset) {
+        for (int x = 0; x < width; x++) {
+            row[offset + x] = get(x, y);
+        }
+    }
+
+    /**
+     * Copies the whole image into a new row-major packed ARGB array.
+     */
+    public int[] toArray() {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            readRow(y, pixels, y * width);
+        }
+        return pixels;
+    }
+
+    // Sets a pixel, silently ignoring positions outside of the image
+    public void setClipped(int x, int y, int argb) {
+        if (x >= 0 && x < width && y >= 0 && y < height) {
+            set(x, y, argb);
+        }
+    }
+
+    /**
+     * Draws a one pixel wide circle outline with the midpoint algorithm.
+     */
+    public void drawCircle(int centerX, int centerY, int radius, int argb) {
+        int x = radius, y = 0;
+        int error = 1 - radius;
+        while (x >= y) {
+            setClipped(centerX + x, centerY + y, argb);
+            setClipped(centerX - x, centerY + y, argb);
+            setClipped(centerX + x, centerY - y, argb);
+            setClipped(centerX - x, centerY - y, argb);
+            setClipped(centerX + y, centerY + x, argb);
+            setClipped(centerX - y, centerY + x, argb);
+            setClipped(centerX + y, centerY - x, argb);
+            setClipped(centerX - y, centerY - x, argb);
+            y++;
+            if (error < 0) {
+                error += 2 * y + 1;
+            } else {
+                x--;
+                error += 2 * (y - x) + 1;
+            }
+        }
+    }
+
+    // TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR, bytes are stored as [A]BGR per pixel
+    private static final class ByteView extends PixelView {
+        private final byte[] data;
+        private final int base;
+        private final int scanline;
+        private final int pixelStride;
+        private final boolean hasAlpha;
+
+        ByteView(BufferedImage image, WritableRaster raster, boolean hasAlpha) {
+            super(image.getWidth(), image.getHeight());
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            this.data = buffer.getData();
+            this.scanline = sampleModel.getScanlineStride();
+            this.pixelStride = sampleModel.getPixelStride();
+            // Sub-images share the parent's buffer with a translated origin
+            this.base = buffer.getOffset()
+                    - raster.getSampleModelTranslateY() * scanline
+                    - raster.getSampleModelTranslateX() * pixelStride;
+            this.hasAlpha = hasAlpha;
+        }
+
+        @Override
+        public int get(int x, int y) {
+            int i = base + y * scanline + x * pixelStride;
+            if (hasAlpha) {
+                return (data[i] & 0xFF) << 24 | (data[i + 3] & 0xFF) << 16
+                        | (data[i + 2] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+            }
+            return 0xFF000000 | (data[i + 2] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i] & 0xFF);
+        }
+
+        @Override
+        public void set(int x, int y, int argb) {
+            int i = base + y * scanline + x * pixelStride;
+            if (hasAlpha) {
+                data[i++] = (byte) (argb >>> 24);
+            }
+            data[i] = (byte) argb;
+            data[i + 1] = (byte) (argb >> 8);
+            data[i + 2] = (byte) (argb >> 16);
+        }
+
+        @Override
+        public void readRow(int y, int[] row, int offset) {
+            int i = base + y * scanline;
+            if (hasAlpha) {
+                for (int x = 0; x < width; x++, i += 4) {
+                    row[offset + x] = (data[i] & 0xFF) << 24 | (data[i + 3] & 0xFF) << 16
+                            | (data[i + 2] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+                }
+            } else {
+                for (int x = 0; x < width; x++, i += 3) {
+                    row[offset + x] = 0xFF000000 | (data[i + 2] & 0xFF) << 16
+                            | (data[i + 1] & 0xFF) << 8 | (data[i] & 0xFF);
+                }
+            }
+        }
+    }
+
+    // TYPE_INT_RGB and TYPE_INT_ARGB, one packed int per pixel
+    private static final class IntView extends PixelView {
+        private final int[] data;
+        private final int base;
+        private final int scanline;
+        private final int alphaMask;
+
+        IntView(BufferedImage image, WritableRaster raster, boolean hasAlpha) {
+            super(image.getWidth(), image.getHeight());
+            SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            this.data = buffer.getData();
+            this.scanline = sampleModel.getScanlineStride();
+            this.base = buffer.getOffset()
+                    - raster.getSampleModelTranslateY() * scanline
+                    - raster.getSampleModelTranslateX();
+            // Opaque images always read back as fully opaque
+            this.alphaMask = hasAlpha ? 0 : 0xFF000000;
+        }
+
+        @Override
+        public int get(int x, int y) {
+            return data[base + y * scanline + x] | alphaMask;
+        }
+
+        @Override
+        public void set(int x, int y, int argb) {
+            data[base + y * scanline + x] = argb;
+        }
+
+        @Override
+        public void readRow(int y, int[] row, int offset) {
+            int i = base + y * scanline;
+            if (alphaMask == 0) {
+                System.arraycopy(data, i, row, offset, width);
+                return;
+            }
+            for (int x = 0; x < width; x++) {
+                row[offset + x] = data[i + x] | alphaMask;
+            }
+        }
+    }
+
+    private static final class GenericView extends PixelView {
+        private final BufferedImage image;
+
+        GenericView(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            this.image = image;
+        }
+
+        @Override
+        public int get(int x, int y) {
+            return image.getRGB(x, y);
+        }
+
+        @Override
+        public void set(int x, int y, int argb) {
+            image.setRGB(x, y, argb);
+        }
+
+        @Override
+        public void readRow(int y, int[] row, int offset) {
+            image.getRGB(0, y, width, 1, row, offset, width);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The intermediate images of one decoded image, computed on first use and shared by the
+ * detectors and the annotator working on it.
+ *
+ * The image is copied into a Mat once. Grayscale, blurred, edge and object mask images are
+ * all derived from that Mat and cached, so running contours after edges, or annotating
+ * after detecting, does not convert or blur again.
+ *
+ * For opaque color images of at least the native size (see {@link Detectors}) the object
+ * mask is computed natively with the same weighted distance as {@link ColorMask}: absdiff
+ * against the reference color, squaring, a weighted channel sum and a threshold, in bands
+ * of BAND_ROWS rows so the float intermediates stay small. Other images use the Java mask,
+ * which skips transparent pixels and needs no Mat.
+ *
+ * The Mats live in pooled slots of the calling thread (see {@link MatBridge}), so an
+ * instance may only be used on the thread that created it and only until that thread
+ * preprocesses its next image. Crops have slots of their own. The image must not be
+ * changed while it is in use.
+ *
+ * An instance can also wrap a BGR Mat, such as a video frame, which is then used as is. Its
+ * object mask is always computed natively, and a BufferedImage is only made if asked for.
+ */
+public class Preprocessed {
+    private static final int BAND_ROWS = 64;
+    // Core.transform weights for B, G and R, see ColorMask.distanceSquared
+    private static final float[] CHANNEL_WEIGHTS = {4, 3, 2};
+
+    // converted from the Mat on first use if created from one
+    private BufferedImage image;
+    private final boolean fromMat;
+    // prefix of the pooled slot names, crops use their own slots
+    private final String slots;
+    // true for a crop of a Mat, which owns its submat header
+    private final boolean ownsHeader;
+    private Mat mat;
+    private Mat gray;
+    private final Map<Integer, Mat> blurred = new HashMap<>();
+    private Mat edges;
+    private EdgeParams edgeParams;
+    private BitMask objectMask;
+    private int maskRgb;
+    private int maskDelta;
+    private NativeComponents components;
+    private int componentsRgb;
+    private int componentsDelta;
+    private boolean componentsInvert;
+
+    public Preprocessed(BufferedImage image) {
+        this(image, "pre-");
+    }
+
+    private Preprocessed(BufferedImage image, String slots) {
+        this.image = image;
+        this.fromMat = false;
+        this.slots = slots;
+        this.ownsHeader = false;
+    }
+
+    /**
+     * Wraps an 8-bit BGR Mat, which must not be changed or released while in use.
+     */
+    public Preprocessed(Mat bgr) {
+        this(bgr, "pre-", false);
+    }
+
+    private Preprocessed(Mat bgr, String slots, boolean ownsHeader) {
+        if (bgr.type() != CvType.CV_8UC3) {
+            throw new IllegalArgumentException("Expected an 8-bit BGR Mat, got type " + bgr.type());
+        }
+        this.fromMat = true;
+        this.mat = bgr;
+        this.slots = slots;
+        this.ownsHeader = ownsHeader;
+    }
+
+    public BufferedImage getImage() {
+        if (image == null) {
+            image = MatBridge.toBufferedImage(mat);
+        }
+        return image;
+    }
+
+    public int getWidth() {
+        return fromMat ? mat.cols() : image.getWidth();
+    }
+
+    public int getHeight() {
+        return fromMat ? mat.rows() : image.getHeight();
+    }
+
+    // true if the image Mat is BGR and no transparency is lost by using it
+    public boolean isOpaqueColor() {
+        return fromMat || !image.getColorModel().hasAlpha() && image.getColorModel().getNumColorComponents() == 3;
+    }
+
+    /**
+     * The part of the image at x, y, sharing its pixels. The crop has pooled slots of its
+     * own, so it never overwrites the Mats of this instance, but the next crop of this
+     * instance overwrites those of the previous one. Call {@link #release()} when done.
+     */
+    public Preprocessed crop(int x, int y, int width, int height) {
+        if (fromMat) {
+            return new Preprocessed(mat.submat(y, y + height, x, x + width), slots + "crop-", true);
+        }
+        return new Preprocessed(image.getSubimage(x, y, width, height), slots + "crop-");
+    }
+
+    /**
+     * Frees the submat header of a crop of a Mat. The pixels belong to the parent and the
+     * other Mats to the thread's pool, so nothing else is released.
+     */
+    public void release() {
+        if (ownsHeader) {
+            mat.release();
+        }
+    }
+
+    // 8-bit BGR or gray copy of the image
+    public Mat mat() {
+        if (mat == null) {
+            Metrics.Span span = Metrics.begin("to-mat");
+            try {
+                mat = MatBridge.toMat(image, slots + "image");
+            } finally {
+                span.end();
+            }
+        }
+        return mat;
+    }
+
+    public Mat gray() {
+        if (gray == null) {
+            Mat source = mat();
+            gray = MatBridge.pooled(slots + "gray", source.rows(), source.cols(), CvType.CV_8UC1);
+            Main.toGray(source, gray);
+        }
+        return gray;
+    }
+
+    // Box blurred grayscale image
+    public Mat blurred(int size) {
+        Mat result = blurred.get(size);
+        if (result == null) {
+            Mat source = gray();
+            result = MatBridge.pooled(slots + "blur" + size, source.rows(), source.cols(), CvType.CV_8UC1);
+            Metrics.Span span = Metrics.begin("blur");
+            try {
+                Imgproc.blur(source, result, new Size(size, size));
+            } finally {
+                span.end();
+            }
+            blurred.put(size, result);
+        }
+        return result;
+    }
+
+    // Canny edges of the blurred grayscale image, shared by the edge and contour detectors
+    public Mat edges(EdgeParams params) {
+        if (edges == null || !params.equals(edgeParams)) {
+            Mat source = blurred(params.getBlurSize());
+            edges = MatBridge.pooled(slots + "edges", source.rows(), source.cols(), CvType.CV_8UC1);
+            Imgproc.Canny(source, edges, params.getCannyLow(), params.getCannyLow() * 3, 3, false);
+            edgeParams = params;
+        }
+        return edges;
+    }
+
+    /**
+     * Pixels similar to the reference color, transparent pixels are never part of it. The
+     * mask of the last color asked for is kept.
+     */
+    public BitMask objectMask(int referenceRgb, int maxDelta) {
+        if (objectMask == null || maskRgb != referenceRgb || maskDelta != maxDelta) {
+            Metrics.Span span = Metrics.begin("mask");
+            try {
+                if (fromMat || isOpaqueColor() && Detectors.prefersNative(this)) {
+                    objectMask = nativeMask(referenceRgb, maxDelta);
+                } else {
+                    objectMask = ColorMask.build(PixelView.of(image), referenceRgb, maxDelta, true, false);
+                }
+            } finally {
+                span.end();
+            }
+            maskRgb = referenceRgb;
+            maskDelta = maxDelta;
+        }
+        return objectMask;
+    }
+
+    private BitMask nativeMask(int referenceRgb, int maxDelta) {
+        Mat similar = similarity(referenceRgb, maxDelta, false);
+        int rows = similar.rows();
+        int cols = similar.cols();
+        BitMask mask = new BitMask(cols, rows);
+        byte[] values = new byte[Math.min(BAND_ROWS, rows) * cols];
+        for (int y0 = 0; y0 < rows; y0 += BAND_ROWS) {
+            int height = Math.min(BAND_ROWS, rows - y0);
+            Mat band = similar.submat(y0, y0 + height, 0, cols);
+            band.get(0, 0, values);
+            mask.setNonZero(values, height * cols, y0 * cols);
+            band.release();
+        }
+        return mask;
+    }
+
+    /**
+     * 8-connected components of {@link #similarity(int, int, boolean)}, labelled natively.
+     * The components of the last mask asked for are kept, so annotating after detecting
+     * does not label again. Only for {@link #isOpaqueColor()} images.
+     */
+    public NativeComponents components(int referenceRgb, int maxDelta, boolean invert) {
+        if (components == null || componentsRgb != referenceRgb || componentsDelta != maxDelta
+                || componentsInvert != invert) {
+            Mat similar = similarity(referenceRgb, maxDelta, invert);
+            Mat labels = MatBridge.pooled(slots + "labels", similar.rows(), similar.cols(), CvType.CV_32S);
+            Mat stats = new Mat();
+            Mat centroids = new Mat();
+            Metrics.Span span = Metrics.begin("label");
+            try {
+                int count = Imgproc.connectedComponentsWithStats(similar, labels, stats, centroids, 8, CvType.CV_32S);
+                components = new NativeComponents(labels, count, stats, centroids);
+            } finally {
+                span.end();
+                MatBridge.release(stats, centroids);
+            }
+            componentsRgb = referenceRgb;
+            componentsDelta = maxDelta;
+            componentsInvert = invert;
+        }
+        return components;
+    }
+
+    /**
+     * 8-bit mask of the pixels similar to the reference color, 255 for similar pixels, or
+     * for the other pixels if invert is set. Only for {@link #isOpaqueColor()} images. The
+     * Mat is a pooled slot and overwritten by the next call.
+     */
+    public Mat similarity(int referenceRgb, int maxDelta, boolean invert) {
+        Mat bgr = mat();
+        int rows = bgr.rows();
+        int cols = bgr.cols();
+        Mat similar = MatBridge.pooled(slots + "similar", rows, cols, CvType.CV_8UC1);
+        int limit = ColorMask.similarityLimit(maxDelta);
+
+        Scalar reference = new Scalar(referenceRgb & 0xFF, (referenceRgb >> 8) & 0xFF, (referenceRgb >> 16) & 0xFF);
+        Mat weights = new Mat(1, 3, CvType.CV_32F);
+        weights.put(0, 0, CHANNEL_WEIGHTS);
+        int bandRows = Math.min(BAND_ROWS, rows);
+        Mat diff = MatBridge.pooled(slots + "diff", bandRows, cols, CvType.CV_8UC3);
+        Mat squared = MatBridge.pooled(slots + "squared", bandRows, cols, CvType.CV_32FC3);
+        Mat distance = MatBridge.pooled(slots + "distance", bandRows, cols, CvType.CV_32FC1);
+
+        for (int y0 = 0; y0 < rows; y0 += bandRows) {
+            int height = Math.min(bandRows, rows - y0);
+            Mat band = bgr.submat(y0, y0 + height, 0, cols);
+            Mat bandSimilar = similar.submat(y0, y0 + height, 0, cols);
+            // the last band may be shorter, work on the top rows of the band buffers
+            Mat bandDiff = diff.submat(0, height, 0, cols);
+            Mat bandSquared = squared.submat(0, height, 0, cols);
+            Mat bandDistance = distance.submat(0, height, 0, cols);
+
+            // 2*dr^2 + 4*db^2 + 3*dg^2 is at most 9 * 255^2, exact in float
+            Core.absdiff(band, reference, bandDiff);
+            bandDiff.convertTo(bandSquared, CvType.CV_32F);
+            Core.multiply(bandSquared, bandSquared, bandSquared);
+            Core.transform(bandSquared, bandDistance, weights);
+            Core.compare(bandDistance, new Scalar(limit), bandSimilar, invert ? Core.CMP_GE : Core.CMP_LT);
+
+            MatBridge.release(band, bandSimilar, bandDiff, bandSquared, bandDistance);
+        }
+        weights.release();
+        return similar;
+    }
+
+    /**
+     * Result of connectedComponentsWithStats: labels 1..count are the components, label 0
+     * is the background. The label plane is a pooled Mat and copied to Java on request.
+     */
+    public static class NativeComponents {
+        private final Mat labels;
+        private final int count;
+        private final int[] area;
+        private final double[] centroids;
+        private int[] labelArray;
+
+        private NativeComponents(Mat labels, int count, Mat stats, Mat centroids) {
+            this.labels = labels;
+            // connectedComponents counts the background as a label
+            this.count = count - 1;
+            this.area = new int[count];
+            int[] stat = new int[count * stats.cols()];
+            stats.get(0, 0, stat);
+            for (int label = 0; label < count; label++) {
+                area[label] = stat[label * stats.cols() + Imgproc.CC_STAT_AREA];
+            }
+            this.centroids = new double[count * 2];
+            centroids.get(0, 0, this.centroids);
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public int area(int label) {
+            return area[label];
+        }
+
+        public double centroidX(int label) {
+            return centroids[label * 2];
+        }
+
+        public double centroidY(int label) {
+            return centroids[label * 2 + 1];
+        }
+
+        // Row-major label plane like ComponentLabeler.Components.labels
+        public int[] labels() {
+            if (labelArray == null) {
+                labelArray = new int[labels.rows() * labels.cols()];
+                labels.get(0, 0, labelArray);
+            }
+            return labelArray;
+        }
+    }
+}
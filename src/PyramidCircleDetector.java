@@ -0,0 +1,219 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Coarse to fine circle detection for high resolution images with large colonies.
+ *
+ * The grayscale image is downsampled with pyrDown until the smallest radius is about
+ * TARGET_MIN_RADIUS pixels, candidates are found there with scaled radii and minDist, and
+ * each candidate is refined with a Hough transform on a small full resolution ROI around it.
+ * Only the ROIs are blurred at full resolution. Nearby candidates can refine to the same
+ * circle, so the refined circles are merged with the minDist rule before verification.
+ */
+public class PyramidCircleDetector {
+    // Radius the coarse level aims for, smaller circles get too few edge pixels for Hough
+    private static final int TARGET_MIN_RADIUS = 10;
+    private static final int MAX_LEVELS = 4;
+
+    /**
+     * Number of pyrDown steps for the radius range, 0 means plain single scale detection.
+     */
+    public static int levelsFor(CircleParams params) {
+        int levels = 0;
+        while (levels < MAX_LEVELS && (params.getMinRadius() >> (levels + 1)) >= TARGET_MIN_RADIUS) {
+            levels++;
+        }
+        return levels;
+    }
+
+    public static void detect(Preprocessed image, CircleParams params, DetectionResult result) {
+        int levels = levelsFor(params);
+        int scale = 1 << levels;
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        BitMask isObject = image.objectMask(params.getObjectRgb(), params.getMaxDelta());
+        CircleVerifier verifier = new CircleVerifier(isObject);
+        // only read, pyrDown and the ROI blurs write into their own Mats
+        Mat grayMat = image.gray();
+
+        // Coarse level: pyrDown halves the size and already low-pass filters the image
+        Mat coarse = grayMat;
+        for (int level = 0; level < levels; level++) {
+            Mat next = MatBridge.pooled("pyramid" + level, (coarse.rows() + 1) / 2, (coarse.cols() + 1) / 2, CvType.CV_8UC1);
+            Imgproc.pyrDown(coarse, next);
+            coarse = next;
+        }
+        int coarseBlur = Math.max(3, (params.getBlurSize() / scale) | 1);
+        Mat coarseBlurred = MatBridge.pooled("pyramid-blur", coarse.rows(), coarse.cols(), CvType.CV_8UC1);
+        Imgproc.blur(coarse, coarseBlurred, new Size(coarseBlur, coarseBlur));
+
+        Mat candidates = new Mat();
+        Imgproc.HoughCircles(coarseBlurred, candidates, Imgproc.CV_HOUGH_GRADIENT, params.getDp(),
+                Math.max(1, params.getMinDist() / scale), params.getParam1(), params.getParam2(),
+                params.getMinRadius() / scale, (params.getMaxRadius() + scale - 1) / scale);
+
+        Mat roiBlurred = new Mat();
+        Mat refined = new Mat();
+        List<TiledCircleDetector.Candidate> circles = new ArrayList<>();
+        for (int i = 0; i < candidates.cols(); i++) {
+            double[] candidate = candidates.get(0, i);
+            double x = candidate[0] * scale, y = candidate[1] * scale, radius = candidate[2] * scale;
+
+            // Search radii around the coarse estimate, within the configured range
+            int slack = 2 * scale;
+            int minRadius = Math.max(params.getMinRadius(), (int) radius - slack);
+            int maxRadius = Math.min(params.getMaxRadius(), (int) Math.ceil(radius) + slack);
+            if (levels > 0 && minRadius <= maxRadius) {
+                int half = maxRadius + slack + params.getBlurSize();
+                int x0 = Math.max(0, (int) x - half), y0 = Math.max(0, (int) y - half);
+                int x1 = Math.min(width, (int) x + half + 1), y1 = Math.min(height, (int) y + half + 1);
+
+                Mat roi = grayMat.submat(new Rect(x0, y0, x1 - x0, y1 - y0));
+                Imgproc.blur(roi, roiBlurred, new Size(params.getBlurSize(), params.getBlurSize()));
+                // minDist spanning the ROI keeps only the strongest circle
+                Imgproc.HoughCircles(roiBlurred, refined, Imgproc.CV_HOUGH_GRADIENT, params.getDp(),
+                        2 * half, params.getParam1(), params.getParam2(), minRadius, maxRadius);
+                roi.release();
+
+                if (refined.cols() > 0) {
+                    double[] circle = refined.get(0, 0);
+                    x = circle[0] + x0;
+                    y = circle[1] + y0;
+                    radius = circle[2];
+                }
+            }
+
+            // Hough reports the candidates by decreasing accumulator value, the earlier ones
+            // have more votes and are kept first
+            int r = (int) radius;
+            circles.add(new TiledCircleDetector.Candidate(x, y, radius, (int) (Math.PI * r * r), -i));
+        }
+        MatBridge.release(candidates, roiBlurred, refined);
+
+        for (TiledCircleDetector.Candidate circle : TiledCircleDetector.merge(circles, params.getMinDist())) {
+            if (verifier.objectRatio((int) circle.x, (int) circle.y, (int) circle.radius) > params.getMinObjectRatio()) {
+                result.add(new DetectionResult.DetectedObject(circle.x, circle.y, circle.radius, circle.area));
+            } else {
+                result.reject();
+            }
+        }
+    }
+
+    /**
+     * Runs the single scale and the pyramid detector on every image of dir and prints
+     * their timings and how well the pyramid circles match the single scale ones.
+     */
+    public static void compare(Path dir, CircleParams params) throws IOException {
+        System.out.println("Pyramid levels: " + levelsFor(params));
+        long singleNanos = 0, pyramidNanos = 0;
+        int singleTotal = 0, pyramidTotal = 0, matchedTotal = 0, mismatched = 0;
+        double centerError = 0, radiusError = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (path.toString().endsWith(Main.OUTPUT_SUFFIX) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                BufferedImage image = ImageIO.read(path.toFile());
+                if (image == null) {
+                    continue;
+                }
+                DetectionResult pyramid = new DetectionResult("circles-pyramid", image.getWidth(), image.getHeight());
+
+                long t0 = System.nanoTime();
+                DetectionResult single = Main.count("circles", image, params);
+                long t1 = System.nanoTime();
+                // fresh preprocessing, so neither detector gets the other's grayscale for free
+                detect(new Preprocessed(image), params, pyramid);
+                long t2 = System.nanoTime();
+                singleNanos += t1 - t0;
+                pyramidNanos += t2 - t1;
+
+                // Greedy matching within half the minimum distance of two circles
+                int matched = 0;
+                double maxDist = params.getMinDist() / 2;
+                List<DetectionResult.DetectedObject> candidates = new ArrayList<>(single.getObjects());
+                List<DetectionResult.DetectedObject> extra = new ArrayList<>();
+                for (DetectionResult.DetectedObject circle : pyramid.getObjects()) {
+                    DetectionResult.DetectedObject best = null;
+                    double bestDist = maxDist;
+                    for (DetectionResult.DetectedObject other : candidates) {
+                        double dist = Math.hypot(circle.getX() - other.getX(), circle.getY() - other.getY());
+                        if (dist <= bestDist) {
+                            best = other;
+                            bestDist = dist;
+                        }
+                    }
+                    if (best != null) {
+                        candidates.remove(best);
+                        matched++;
+                        centerError += bestDist;
+                        radiusError += Math.abs(circle.getRadius() - best.getRadius());
+                    } else {
+                        extra.add(circle);
+                    }
+                }
+                System.out.println(String.format(Locale.ROOT, "%s: single %d circles in %.1f ms, pyramid %d circles in %.1f ms, %d matched",
+                        path.getFileName(), single.count(), (t1 - t0) / 1e6, pyramid.count(), (t2 - t1) / 1e6, matched));
+                if (single.count() != pyramid.count()) {
+                    mismatched++;
+                    printMismatch(candidates, extra, pyramid, params);
+                }
+                singleTotal += single.count();
+                pyramidTotal += pyramid.count();
+                matchedTotal += matched;
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT, "Total: single %d circles in %.1f ms, pyramid %d circles in %.1f ms (%.2fx)",
+                singleTotal, singleNanos / 1e6, pyramidTotal, pyramidNanos / 1e6,
+                pyramidNanos == 0 ? 0 : (double) singleNanos / pyramidNanos));
+        System.out.println(mismatched + " images with a count mismatch");
+        if (matchedTotal > 0) {
+            System.out.println(String.format(Locale.ROOT,
+                    "Recall %.1f%%, precision %.1f%%, mean center error %.2f px, mean radius error %.2f px",
+                    100.0 * matchedTotal / Math.max(1, singleTotal), 100.0 * matchedTotal / Math.max(1, pyramidTotal),
+                    centerError / matchedTotal, radiusError / matchedTotal));
+        }
+    }
+
+    /**
+     * Prints the circles only one of the detectors found. Extra pyramid circles within two
+     * minDist of another pyramid circle are marked as clustered, these are the ones a missed
+     * merge of nearby candidates would produce.
+     */
+    private static void printMismatch(List<DetectionResult.DetectedObject> missed,
+                                      List<DetectionResult.DetectedObject> extra, DetectionResult pyramid,
+                                      CircleParams params) {
+        for (DetectionResult.DetectedObject circle : missed) {
+            System.out.println(String.format(Locale.ROOT, "  missed %.0f,%.0f r=%.1f",
+                    circle.getX(), circle.getY(), circle.getRadius()));
+        }
+        for (DetectionResult.DetectedObject circle : extra) {
+            double nearest = Double.MAX_VALUE;
+            for (DetectionResult.DetectedObject other : pyramid.getObjects()) {
+                if (other != circle) {
+                    nearest = Math.min(nearest, Math.hypot(circle.getX() - other.getX(), circle.getY() - other.getY()));
+                }
+            }
+            boolean clustered = nearest < 2 * params.getMinDist();
+            System.out.println(String.format(Locale.ROOT, "  extra %.0f,%.0f r=%.1f%s", circle.getX(), circle.getY(),
+                    circle.getRadius(), clustered ? String.format(Locale.ROOT, ", clustered (%.1f px to the next circle)",
+                            nearest) : ""));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * A set of pixels stored as horizontal runs, with statistics kept up to date as pixels are
+ * added.
+ *
+ * Adding pixels in scan order (row by row, left to right) extends the last run whenever
+ * the pixel continues it, so a region costs 12 bytes per run instead of a map entry per
+ * pixel. Pixels added out of order start new runs and are still counted correctly, but a
+ * pixel must not be added twice.
+ */
+public class Region {
+    // y, first x and last x of every run
+    private int[] runs = new int[3];
+    private int runCount;
+
+    private int area;
+    private int edgeCount;
+    private long sumX;
+    private long sumY;
+    private long sumRed;
+    private long sumGreen;
+    private long sumBlue;
+    private int minX = Integer.MAX_VALUE;
+    private int minY = Integer.MAX_VALUE;
+    private int maxX = Integer.MIN_VALUE;
+    private int maxY = Integer.MIN_VALUE;
+
+    public void add(int x, int y, int rgb, boolean isEdge) {
+        int last = (runCount - 1) * 3;
+        if (runCount > 0 && runs[last] == y && runs[last + 2] == x - 1) {
+            runs[last + 2] = x;
+        } else {
+            if ((runCount + 1) * 3 > runs.length) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+            int next = runCount * 3;
+            runs[next] = y;
+            runs[next + 1] = x;
+            runs[next + 2] = x;
+            runCount++;
+        }
+
+        area++;
+        if (isEdge) {
+            edgeCount++;
+        }
+        sumX += x;
+        sumY += y;
+        sumRed += (rgb >> 16) & 0xFF;
+        sumGreen += (rgb >> 8) & 0xFF;
+        sumBlue += rgb & 0xFF;
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+    }
+
+    /**
+     * Drops the spare capacity of the run array once the region is complete.
+     */
+    public void trimToSize() {
+        if (runs.length > runCount * 3) {
+            runs = Arrays.copyOf(runs, Math.max(3, runCount * 3));
+        }
+    }
+
+    public int size() {
+        return area;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public double centroidX() {
+        return area == 0 ? 0 : (double) sumX / area;
+    }
+
+    public double centroidY() {
+        return area == 0 ? 0 : (double) sumY / area;
+    }
+
+    /**
+     * Mean color of the region as opaque packed RGB.
+     */
+    public int meanRgb() {
+        if (area == 0) {
+            return 0;
+        }
+        int red = (int) (sumRed / area), green = (int) (sumGreen / area), blue = (int) (sumBlue / area);
+        return 0xFF000000 | red << 16 | green << 8 | blue;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMaxX() {
+        return maxX;
+    }
+
+    public int getMaxY() {
+        return maxY;
+    }
+
+    public int runCount() {
+        return runCount;
+    }
+
+    public int runY(int run) {
+        return runs[run * 3];
+    }
+
+    // First x of the run
+    public int runStartX(int run) {
+        return runs[run * 3 + 1];
+    }
+
+    // Last x of the run, inclusive
+    public int runEndX(int run) {
+        return runs[run * 3 + 2];
+    }
+}
@@ -0,0 +1,114 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Counts connected regions of object colored pixels whose area is within the limits of
+ * the {@link RegionParams}.
+ *
+ * There are two backends with the same results. The Java backend builds a {@link BitMask}
+ * and labels it with {@link ComponentLabeler}, without any native calls. The OpenCV backend
+ * builds the mask from the image Mat and labels it with connectedComponentsWithStats; it
+ * pays for copying the image into a Mat, which is only worth it for large images, so it is
+ * picked per image by {@link Detectors#prefersNative(Preprocessed)}. Images with alpha
+ * always use the Java backend, the image Mat has no transparency. Annotation paints the
+ * accepted regions from the labels of the backend that detected them.
+ */
+public class RegionDetector implements Detector<RegionParams> {
+    private final String name;
+    // parameters for the options that are not given
+    private final RegionParams defaults;
+    // color of the accepted regions in annotated images, packed ARGB
+    private final int objectArgb;
+
+    public RegionDetector(String name, RegionParams defaults, int objectArgb) {
+        this.name = name;
+        this.defaults = defaults;
+        this.objectArgb = objectArgb;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public RegionParams params(Options options) {
+        return RegionParams.from(options, defaults);
+    }
+
+    @Override
+    public boolean usesOpenCv(Preprocessed image) {
+        return image.isOpaqueColor() && Detectors.prefersNative(image);
+    }
+
+    @Override
+    public DetectionResult detect(Preprocessed image, RegionParams params) {
+        if (usesOpenCv(image)) {
+            return detectNative(image, params);
+        }
+        ComponentLabeler.Components components = components(PixelView.of(image.getImage()), params);
+        DetectionResult result = new DetectionResult(name, image.getWidth(), image.getHeight());
+        for (int label = 1; label <= components.count(); label++) {
+            add(result, params, components.area(label), components.centroidX(label), components.centroidY(label));
+        }
+        return result;
+    }
+
+    /**
+     * Paints the regions whose area is accepted with the detector's color and everything
+     * else black.
+     */
+    @Override
+    public BufferedImage annotate(Preprocessed image, DetectionResult result, RegionParams params) {
+        int[] labels;
+        boolean[] accepted;
+        if (usesOpenCv(image)) {
+            // the components the detection labelled, kept by the preprocessed image
+            Preprocessed.NativeComponents components = image.components(params.getReferenceRgb(),
+                    params.getMaxDelta(), params.isInvert());
+            labels = components.labels();
+            accepted = new boolean[components.count() + 1];
+            for (int label = 1; label <= components.count(); label++) {
+                accepted[label] = params.isAccepted(components.area(label));
+            }
+        } else {
+            ComponentLabeler.Components components = components(PixelView.of(image.getImage()), params);
+            labels = components.labels();
+            accepted = new boolean[components.count() + 1];
+            for (int label = 1; label <= components.count(); label++) {
+                accepted[label] = params.isAccepted(components.area(label));
+            }
+        }
+        return Annotator.paintLabels(image.getImage(), labels, accepted, params.isSkipTransparent(), objectArgb);
+    }
+
+    /**
+     * Labels the object pixels of the image in Java.
+     */
+    static ComponentLabeler.Components components(PixelView view, RegionParams params) {
+        // perform similarity check
+        BitMask isObject = ColorMask.build(view, params.getReferenceRgb(), params.getMaxDelta(),
+                params.isSkipTransparent(), params.isInvert());
+
+        // mark all adjacent object pixels to recognize as one object
+        return ComponentLabeler.label(isObject);
+    }
+
+    private DetectionResult detectNative(Preprocessed image, RegionParams params) {
+        // 8-connected like ComponentLabeler
+        Preprocessed.NativeComponents components = image.components(params.getReferenceRgb(), params.getMaxDelta(),
+                params.isInvert());
+        DetectionResult result = new DetectionResult(name, image.getWidth(), image.getHeight());
+        for (int label = 1; label <= components.count(); label++) {
+            add(result, params, components.area(label), components.centroidX(label), components.centroidY(label));
+        }
+        return result;
+    }
+
+    private static void add(DetectionResult result, RegionParams params, int area, double x, double y) {
+        if (params.isAccepted(area)) {
+            result.add(new DetectionResult.DetectedObject(x, y, 0, area));
+        } else {
+            result.reject();
+        }
+    }
+}
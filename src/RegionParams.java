@@ -0,0 +1,84 @@
+import java.awt.Color;
+import java.util.Locale;
+
+/**
+ * Parameters of the region detectors: which pixels are objects and how large a connected
+ * region of them may be to count as one.
+ */
+public class RegionParams {
+    public static final RegionParams NAIVE = new RegionParams(Color.decode("#D7D4C3").getRGB(), 80,
+            false, false, 10, 150);
+    // non-transparent pixels that do not have the background color
+    public static final RegionParams BACKGROUND = new RegionParams(Color.decode("#8F9392").getRGB(), 100,
+            true, true, 3, 800);
+
+    private final int referenceRgb;
+    private final int maxDelta;
+    // transparent pixels are never objects
+    private final boolean skipTransparent;
+    // objects are the pixels NOT similar to the reference color
+    private final boolean invert;
+    // regions count when minArea < area < maxArea pixels
+    private final int minArea;
+    private final int maxArea;
+
+    public RegionParams(int referenceRgb, int maxDelta, boolean skipTransparent, boolean invert,
+                        int minArea, int maxArea) {
+        if (minArea < 0 || maxArea < minArea) {
+            throw new IllegalArgumentException("Invalid area range " + minArea + ".." + maxArea);
+        }
+        this.referenceRgb = referenceRgb;
+        this.maxDelta = maxDelta;
+        this.skipTransparent = skipTransparent;
+        this.invert = invert;
+        this.minArea = minArea;
+        this.maxArea = maxArea;
+    }
+
+    /**
+     * Reads the parameters from options, falling back to the given defaults for missing keys.
+     */
+    public static RegionParams from(Options options, RegionParams d) {
+        return new RegionParams(
+                options.has("color") ? Color.decode(options.get("color", null)).getRGB() : d.referenceRgb,
+                options.getInt("max-delta", d.maxDelta),
+                options.getBoolean("skip-transparent", d.skipTransparent),
+                options.getBoolean("invert", d.invert),
+                options.getInt("min-area", d.minArea),
+                options.getInt("max-area", d.maxArea));
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"color\":\"#%06X\",\"maxDelta\":%d,\"skipTransparent\":%b,"
+                        + "\"invert\":%b,\"minArea\":%d,\"maxArea\":%d}",
+                referenceRgb & 0xFFFFFF, maxDelta, skipTransparent, invert, minArea, maxArea);
+    }
+
+    public boolean isAccepted(int area) {
+        return area > minArea && area < maxArea;
+    }
+
+    public int getReferenceRgb() {
+        return referenceRgb;
+    }
+
+    public int getMaxDelta() {
+        return maxDelta;
+    }
+
+    public boolean isSkipTransparent() {
+        return skipTransparent;
+    }
+
+    public boolean isInvert() {
+        return invert;
+    }
+
+    public int getMinArea() {
+        return minArea;
+    }
+
+    public int getMaxArea() {
+        return maxArea;
+    }
+}
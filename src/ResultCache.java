@@ -0,0 +1,243 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent detection results keyed by the content of the image and the detector settings.
+ *
+ * Entries live in a single memory-mapped file used as a ring buffer: new entries are
+ * appended at the write position and, once the file is full, the oldest entries are
+ * evicted to make room. The file header stores the oldest and the write position, so the
+ * in-memory index is rebuilt by walking the entries between them when the cache is opened.
+ *
+ * File layout: int magic, int unused, long capacity, int oldest, int write, 8 bytes
+ * unused, followed by capacity bytes of entries. An entry is an int length, the 32 byte
+ * key and the result in the binary {@link ResultRecord} form. A length of -1, or fewer than
+ * 4 bytes left, marks the rest of the file as unused and continues at offset 0.
+ */
+public class ResultCache implements Closeable {
+    // "ECC" and the format version
+    private static final int MAGIC = 0x45434302;
+    private static final int HEADER_SIZE = 32;
+    private static final int OLDEST_OFFSET = 16;
+    private static final int WRITE_OFFSET = 20;
+    private static final int KEY_SIZE = 32;
+    private static final int WRAP = -1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    // key -> entry offset in the data region
+    private final Map<ByteBuffer, Integer> index = new HashMap<>();
+    private int oldest;
+    private int write;
+    private long hits;
+    private long misses;
+
+    public ResultCache(Path file, int capacity) throws IOException {
+        if (capacity < 4096) {
+            throw new IllegalArgumentException("Cache capacity must be at least 4096 bytes");
+        }
+        this.capacity = capacity;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean existing = channel.size() == HEADER_SIZE + (long) capacity;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+        if (!existing || buffer.getInt(0) != MAGIC || buffer.getLong(8) != capacity || !load()) {
+            // new file, other capacity or damaged: start empty
+            index.clear();
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(8, capacity);
+            oldest = write = 0;
+            writePositions();
+        }
+    }
+
+    /**
+     * Cache key of an encoded image for one detector and its own parameters, see
+     * {@link Detectors#params}, so settings the detector does not use never cause a miss.
+     */
+    public static byte[] key(byte[] image, String detector, Object params) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(image);
+            digest.update((byte) 0);
+            digest.update(detector.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(ResultRecord.paramsJson(params).getBytes(StandardCharsets.UTF_8));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Stored result for key, or null if it was never stored or has been evicted.
+     */
+    public synchronized DetectionResult get(byte[] key) {
+        Integer position = index.get(ByteBuffer.wrap(key));
+        if (position == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int length = buffer.getInt(HEADER_SIZE + position) - KEY_SIZE;
+        byte[] payload = new byte[length];
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(HEADER_SIZE + position + 4 + KEY_SIZE);
+        entry.get(payload);
+        try {
+            return ResultRecord.readFrom(new DataInputStream(new ByteArrayInputStream(payload))).getResult();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void put(byte[] key, DetectionResult result, Object params) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            new ResultRecord("", params, ImageDecoder.FULL, result, 0, 0, 0).writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int size = 4 + KEY_SIZE + bytes.size();
+        if (size + 4 > capacity / 2) {
+            // never let a single entry flush most of the cache
+            return;
+        }
+        ByteBuffer mapKey = ByteBuffer.wrap(key.clone());
+        if (index.containsKey(mapKey)) {
+            return;
+        }
+
+        if (oldest == write) {
+            oldest = write = 0;
+        }
+        boolean wrap = capacity - write < size;
+        int needed = size + (wrap ? capacity - write : 0);
+        // Keep at least one free byte so a full ring is never mistaken for an empty one
+        while (capacity - used() <= needed) {
+            evictOldest();
+        }
+        writePositions();
+
+        if (wrap) {
+            if (capacity - write >= 4) {
+                buffer.putInt(HEADER_SIZE + write, WRAP);
+            }
+            write = 0;
+        }
+        int position = write;
+        buffer.putInt(HEADER_SIZE + position, KEY_SIZE + bytes.size());
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(HEADER_SIZE + position + 4);
+        entry.put(key);
+        entry.put(bytes.toByteArray());
+        index.put(mapKey, position);
+
+        write = position + size == capacity ? 0 : position + size;
+        // The entry becomes visible to later runs only once the write position covers it
+        writePositions();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private int used() {
+        return write >= oldest ? write - oldest : capacity - oldest + write;
+    }
+
+    private void evictOldest() {
+        if (capacity - oldest < 4 || buffer.getInt(HEADER_SIZE + oldest) == WRAP) {
+            oldest = 0;
+            return;
+        }
+        int length = buffer.getInt(HEADER_SIZE + oldest);
+        byte[] key = new byte[KEY_SIZE];
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(HEADER_SIZE + oldest + 4);
+        entry.get(key);
+        index.remove(ByteBuffer.wrap(key), oldest);
+        oldest += 4 + length;
+        if (oldest == capacity) {
+            oldest = 0;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the entries between oldest and write, false if they are damaged.
+     */
+    private boolean load() {
+        oldest = buffer.getInt(OLDEST_OFFSET);
+        write = buffer.getInt(WRITE_OFFSET);
+        if (oldest < 0 || oldest >= capacity || write < 0 || write >= capacity) {
+            return false;
+        }
+        int position = oldest;
+        // each step consumes at least 4 bytes, so a damaged chain cannot loop forever
+        for (long steps = 0; position != write; steps++) {
+            if (steps > capacity / 4) {
+                return false;
+            }
+            if (capacity - position < 4 || buffer.getInt(HEADER_SIZE + position) == WRAP) {
+                if (write > position) {
+                    return false;
+                }
+                position = 0;
+                continue;
+            }
+            int length = buffer.getInt(HEADER_SIZE + position);
+            if (length < KEY_SIZE || length > capacity - position - 4) {
+                return false;
+            }
+            // the write position can only be at an entry boundary
+            if (position < write && position + 4 + length > write) {
+                return false;
+            }
+            byte[] key = new byte[KEY_SIZE];
+            ByteBuffer entry = buffer.duplicate();
+            entry.position(HEADER_SIZE + position + 4);
+            entry.get(key);
+            index.put(ByteBuffer.wrap(key), position);
+            position += 4 + length;
+            if (position == capacity) {
+                position = 0;
+            }
+        }
+        return true;
+    }
+
+    private void writePositions() {
+        buffer.putInt(OLDEST_OFFSET, oldest);
+        buffer.putInt(WRITE_OFFSET, write);
+    }
+}
@@ -0,0 +1,293 @@
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * One line of batch output: the detection result of an image together with the
+ * parameters it was produced with and how long each stage took.
+ *
+ * The parameters are those of the detector, see {@link Detector#params(CircleParams)}, in
+ * source pixels; the decoder tells how the image was subsampled and cropped before
+ * detection. Parameters of a type other than CircleParams, RegionParams or EdgeParams are
+ * stored as their toString() and read back as a String.
+ */
+public class ResultRecord {
+    // Binary tags of the parameter types
+    private static final int OTHER_PARAMS = 0;
+    private static final int CIRCLE_PARAMS = 1;
+    private static final int REGION_PARAMS = 2;
+    private static final int EDGE_PARAMS = 3;
+
+    private final String fileName;
+    private final Object params;
+    private final ImageDecoder decoder;
+    private final DetectionResult result;
+    private final long decodeNanos;
+    private final long detectNanos;
+    // annotation and encoding, 0 in count-only mode
+    private final long encodeNanos;
+
+    public ResultRecord(String fileName, Object params, ImageDecoder decoder, DetectionResult result,
+                        long decodeNanos, long detectNanos, long encodeNanos) {
+        this.fileName = fileName;
+        this.params = params;
+        this.decoder = decoder;
+        this.result = result;
+        this.decodeNanos = decodeNanos;
+        this.detectNanos = detectNanos;
+        this.encodeNanos = encodeNanos;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Object getParams() {
+        return params;
+    }
+
+    public ImageDecoder getDecoder() {
+        return decoder;
+    }
+
+    public DetectionResult getResult() {
+        return result;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getDetectNanos() {
+        return detectNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * Single line JSON object, the file name always comes first.
+     */
+    public String toJson() {
+        String json = result.toJson();
+        Rectangle region = decoder.getRegion();
+        return "{\"file\":" + quote(fileName)
+                + ",\"params\":" + paramsJson(params)
+                + ",\"subsample\":" + decoder.getSubsampling()
+                + (region == null ? "" : ",\"region\":[" + region.x + "," + region.y + "," + region.width + ","
+                + region.height + "]")
+                + String.format(Locale.ROOT, ",\"decodeMs\":%.3f,\"detectMs\":%.3f,\"encodeMs\":%.3f,",
+                decodeNanos / 1e6, detectNanos / 1e6, encodeNanos / 1e6)
+                + json.substring(1);
+    }
+
+    /*
+     * Binary layout, all numbers big endian:
+     *   utf file, utf detector, int width, int height,
+     *   byte params type, followed by
+     *     CIRCLE_PARAMS: double dp, minDist, param1, param2, int minRadius, maxRadius, objectRgb,
+     *       maxDelta, blurSize, double minObjectRatio, boolean debugSamples
+     *     REGION_PARAMS: int referenceRgb, maxDelta, boolean skipTransparent, invert, int minArea, maxArea
+     *     EDGE_PARAMS: int blurSize, double cannyLow
+     *     OTHER_PARAMS: utf toString()
+     *   int subsampling, boolean region, if region int x, y, width, height,
+     *   long decodeNanos, detectNanos, encodeNanos,
+     *   int rejected, int count, count * (float x, y, radius, area)
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(fileName);
+        out.writeUTF(result.getDetector());
+        out.writeInt(result.getWidth());
+        out.writeInt(result.getHeight());
+
+        writeParams(out, params);
+        out.writeInt(decoder.getSubsampling());
+        Rectangle region = decoder.getRegion();
+        out.writeBoolean(region != null);
+        if (region != null) {
+            out.writeInt(region.x);
+            out.writeInt(region.y);
+            out.writeInt(region.width);
+            out.writeInt(region.height);
+        }
+
+        out.writeLong(decodeNanos);
+        out.writeLong(detectNanos);
+        out.writeLong(encodeNanos);
+
+        out.writeInt(result.getRejected());
+        out.writeInt(result.count());
+        for (DetectionResult.DetectedObject object : result.getObjects()) {
+            out.writeFloat((float) object.getX());
+            out.writeFloat((float) object.getY());
+            out.writeFloat((float) object.getRadius());
+            out.writeFloat((float) object.getArea());
+        }
+    }
+
+    /**
+     * Reads a record written by {@link #writeTo(DataOutput)}. Fails with an IOException if
+     * the record is truncated or its lengths and parameters are invalid. Objects are only
+     * allocated as their bytes are read, so a damaged count cannot exhaust the heap.
+     */
+    public static ResultRecord readFrom(DataInput in) throws IOException {
+        try {
+            String fileName = in.readUTF();
+            String detector = in.readUTF();
+            int width = in.readInt();
+            int height = in.readInt();
+            if (width < 0 || height < 0) {
+                throw new IOException("Invalid result record: image size " + width + "x" + height);
+            }
+            DetectionResult result = new DetectionResult(detector, width, height);
+
+            Object params = readParams(in);
+            ImageDecoder decoder = readDecoder(in);
+
+            long decodeNanos = in.readLong();
+            long detectNanos = in.readLong();
+            long encodeNanos = in.readLong();
+
+            int rejected = in.readInt();
+            int count = in.readInt();
+            if (rejected < 0 || count < 0) {
+                throw new IOException("Invalid result record: " + count + " objects, " + rejected + " rejected");
+            }
+            result.reject(rejected);
+            for (int i = 0; i < count; i++) {
+                result.add(new DetectionResult.DetectedObject(in.readFloat(), in.readFloat(), in.readFloat(),
+                        in.readFloat()));
+            }
+            return new ResultRecord(fileName, params, decoder, result, decodeNanos, detectNanos, encodeNanos);
+        } catch (EOFException e) {
+            throw new IOException("Truncated result record", e);
+        } catch (IllegalArgumentException e) {
+            // parameters the constructors reject
+            throw new IOException("Invalid result record: " + e.getMessage(), e);
+        }
+    }
+
+    static String paramsJson(Object params) {
+        if (params instanceof CircleParams) {
+            return ((CircleParams) params).toJson();
+        }
+        if (params instanceof RegionParams) {
+            return ((RegionParams) params).toJson();
+        }
+        if (params instanceof EdgeParams) {
+            return ((EdgeParams) params).toJson();
+        }
+        return quote(String.valueOf(params));
+    }
+
+    private static void writeParams(DataOutput out, Object params) throws IOException {
+        if (params instanceof CircleParams) {
+            CircleParams circle = (CircleParams) params;
+            out.writeByte(CIRCLE_PARAMS);
+            out.writeDouble(circle.getDp());
+            out.writeDouble(circle.getMinDist());
+            out.writeDouble(circle.getParam1());
+            out.writeDouble(circle.getParam2());
+            out.writeInt(circle.getMinRadius());
+            out.writeInt(circle.getMaxRadius());
+            out.writeInt(circle.getObjectRgb());
+            out.writeInt(circle.getMaxDelta());
+            out.writeInt(circle.getBlurSize());
+            out.writeDouble(circle.getMinObjectRatio());
+            out.writeBoolean(circle.isDebugSamples());
+        } else if (params instanceof RegionParams) {
+            RegionParams region = (RegionParams) params;
+            out.writeByte(REGION_PARAMS);
+            out.writeInt(region.getReferenceRgb());
+            out.writeInt(region.getMaxDelta());
+            out.writeBoolean(region.isSkipTransparent());
+            out.writeBoolean(region.isInvert());
+            out.writeInt(region.getMinArea());
+            out.writeInt(region.getMaxArea());
+        } else if (params instanceof EdgeParams) {
+            EdgeParams edge = (EdgeParams) params;
+            out.writeByte(EDGE_PARAMS);
+            out.writeInt(edge.getBlurSize());
+            out.writeDouble(edge.getCannyLow());
+        } else {
+            out.writeByte(OTHER_PARAMS);
+            out.writeUTF(String.valueOf(params));
+        }
+    }
+
+    private static Object readParams(DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case CIRCLE_PARAMS:
+                return new CircleParams(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        in.readDouble(), in.readBoolean());
+            case REGION_PARAMS:
+                return new RegionParams(in.readInt(), in.readInt(), in.readBoolean(), in.readBoolean(),
+                        in.readInt(), in.readInt());
+            case EDGE_PARAMS:
+                return new EdgeParams(in.readInt(), in.readDouble());
+            case OTHER_PARAMS:
+                return in.readUTF();
+            default:
+                throw new IOException("Invalid result record: unknown parameter type " + type);
+        }
+    }
+
+    private static ImageDecoder readDecoder(DataInput in) throws IOException {
+        int subsampling = in.readInt();
+        Rectangle region = null;
+        if (in.readBoolean()) {
+            region = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        }
+        return subsampling == 1 && region == null ? ImageDecoder.FULL : new ImageDecoder(subsampling, region);
+    }
+
+    static String quote(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * Reads back a string written by {@link #quote(String)} starting at the opening quote.
+     * Returns null if the string is not terminated.
+     */
+    static String unquote(String json, int start) {
+        StringBuilder value = new StringBuilder();
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                if (++i >= json.length()) {
+                    return null;
+                }
+                c = json.charAt(i);
+                if (c == 'u') {
+                    if (i + 4 >= json.length()) {
+                        return null;
+                    }
+                    c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                    i += 4;
+                }
+            }
+            value.append(c);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Appends one {@link ResultRecord} per image to a single results file, either as JSON
+ * Lines or in a compact length prefixed binary format.
+ *
+ * Every record is flushed as soon as it is written, so after a crash the file holds every
+ * finished image. When resuming, a partly written last record is cut off and the names of
+ * the files already in the results are available through {@link #isCompleted(String)}.
+ */
+public abstract class ResultWriter implements Closeable {
+    // "ECR" and the format version, at the start of binary result files
+    private static final int BINARY_MAGIC = 0x45435202;
+
+    private final Set<String> completed;
+    private final OutputStream out;
+
+    private ResultWriter(Path file, boolean resume) throws IOException {
+        Set<String> completed = new HashSet<>();
+        boolean append = resume && Files.exists(file);
+        if (append) {
+            long valid = scan(file, completed);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        this.completed = Collections.unmodifiableSet(completed);
+        this.out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        if (!append || Files.size(file) == 0) {
+            writeHeader(out);
+        }
+    }
+
+    /**
+     * Opens file for writing. Without resume an existing file is overwritten.
+     */
+    public static ResultWriter open(Path file, boolean binary, boolean resume) throws IOException {
+        return binary ? new BinaryWriter(file, resume) : new JsonLinesWriter(file, resume);
+    }
+
+    public boolean isCompleted(String fileName) {
+        return completed.contains(fileName);
+    }
+
+    public int completedCount() {
+        return completed.size();
+    }
+
+    public synchronized void write(ResultRecord record) throws IOException {
+        writeRecord(out, record);
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Collects the file names of all complete records and returns the length of the valid
+     * part of the file.
+     */
+    protected abstract long scan(Path file, Set<String> completed) throws IOException;
+
+    protected abstract void writeHeader(OutputStream out) throws IOException;
+
+    protected abstract void writeRecord(OutputStream out, ResultRecord record) throws IOException;
+
+    /**
+     * Streams all complete records of a binary results file to consumer. Fails with an
+     * IOException if a record is damaged.
+     */
+    public static void readBinary(Path file, Consumer<ResultRecord> consumer) throws IOException {
+        long size = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            readMagic(in, file);
+            long position = 4;
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                position += 4;
+                if (length > size - position) {
+                    // record cut off by a crash
+                    return;
+                }
+                payload = payload(payload, length, file, position);
+                in.readFully(payload, 0, length);
+                ResultRecord record;
+                try {
+                    record = ResultRecord.readFrom(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                } catch (IOException e) {
+                    throw new IOException("Damaged binary results file " + file + " at byte " + (position - 4) + ": "
+                            + e.getMessage(), e);
+                }
+                position += length;
+                consumer.accept(record);
+            }
+        }
+    }
+
+    // Buffer for a record of length bytes, checked before anything is allocated
+    private static byte[] payload(byte[] payload, int length, Path file, long position) throws IOException {
+        if (length < 0) {
+            throw new IOException("Damaged binary results file " + file + ": record length " + length + " at byte "
+                    + (position - 4));
+        }
+        return payload.length < length ? new byte[Math.max(length, payload.length * 2)] : payload;
+    }
+
+    private static void readMagic(DataInputStream in, Path file) throws IOException {
+        try {
+            int magic = in.readInt();
+            if (magic >>> 8 == BINARY_MAGIC >>> 8 && magic != BINARY_MAGIC) {
+                throw new IOException("Binary results file " + file + " has format version " + (magic & 0xFF)
+                        + ", expected " + (BINARY_MAGIC & 0xFF));
+            }
+            if (magic != BINARY_MAGIC) {
+                throw new IOException("Not a binary results file: " + file);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Not a binary results file: " + file, e);
+        }
+    }
+
+    private static class JsonLinesWriter extends ResultWriter {
+        JsonLinesWriter(Path file, boolean resume) throws IOException {
+            super(file, resume);
+        }
+
+        @Override
+        protected long scan(Path file, Set<String> completed) throws IOException {
+            long valid = 0, position = 0;
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                int b;
+                while ((b = in.read()) >= 0) {
+                    position++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    // Every record starts with {"file":"...
+                    String json = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                    line.reset();
+                    String prefix = "{\"file\":";
+                    String fileName = json.startsWith(prefix) ? ResultRecord.unquote(json, prefix.length()) : null;
+                    if (fileName == null) {
+                        throw new IOException("Malformed result record in " + file + " at byte " + valid);
+                    }
+                    completed.add(fileName);
+                    valid = position;
+                }
+            }
+            return valid;
+        }
+
+        @Override
+        protected void writeHeader(OutputStream out) {
+        }
+
+        @Override
+        protected void writeRecord(OutputStream out, ResultRecord record) throws IOException {
+            out.write(record.toJson().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+    }
+
+    private static class BinaryWriter extends ResultWriter {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final DataOutputStream data = new DataOutputStream(buffer);
+
+        BinaryWriter(Path file, boolean resume) throws IOException {
+            super(file, resume);
+        }
+
+        @Override
+        protected long scan(Path file, Set<String> completed) throws IOException {
+            if (Files.size(file) == 0) {
+                return 0;
+            }
+            long size = Files.size(file);
+            long valid = 4;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                readMagic(in, file);
+                byte[] payload = new byte[256];
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return valid;
+                    }
+                    if (length > size - valid - 4) {
+                        // the last record was cut off
+                        return valid;
+                    }
+                    payload = payload(payload, length, file, valid + 4);
+                    in.readFully(payload, 0, length);
+                    // the file name is the first field of the payload
+                    completed.add(readFileName(payload, length, file, valid));
+                    valid += 4 + length;
+                }
+            }
+        }
+
+        private static String readFileName(byte[] payload, int length, Path file, long position) throws IOException {
+            try {
+                return new DataInputStream(new ByteArrayInputStream(payload, 0, length)).readUTF();
+            } catch (EOFException e) {
+                throw new IOException("Damaged binary results file " + file + ": record at byte " + position
+                        + " is too short", e);
+            }
+        }
+
+        @Override
+        protected void writeHeader(OutputStream out) throws IOException {
+            new DataOutputStream(out).writeInt(BINARY_MAGIC);
+        }
+
+        @Override
+        protected void writeRecord(OutputStream out, ResultRecord record) throws IOException {
+            // Write callers hold the lock, so the scratch buffer is never shared
+            buffer.reset();
+            record.writeTo(data);
+            data.flush();
+            new DataOutputStream(out).writeInt(buffer.size());
+            buffer.writeTo(out);
+        }
+    }
+}
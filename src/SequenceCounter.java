@@ -0,0 +1,471 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Locale;
+
+/**
+ * Counts circles across the frames of a time-lapse and keeps their identities.
+ *
+ * Keyframes get a full Hough pass. On the frames in between only two kinds of regions are
+ * searched: a small ROI around every tracked circle, where a narrow radius range refines
+ * the circle, and the regions whose blurred grayscale changed since the previous frame,
+ * where new circles can appear. A frame whose changed area is too large becomes a keyframe.
+ * Circles keep their track ID as long as they are found again near their last position.
+ */
+public class SequenceCounter {
+    public static class Track {
+        private final int id;
+        private double x;
+        private double y;
+        private double radius;
+
+        Track(int id, double x, double y, double radius) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        public double getRadius() {
+            return radius;
+        }
+    }
+
+    private final CircleParams params;
+    private final int keyframeInterval;
+    private final int diffThreshold;
+    private final double maxChangedRatio;
+    // radius change allowed between two frames
+    private final int slack;
+
+    private List<Track> tracks = new ArrayList<>();
+    private int nextId = 1;
+    private long frameIndex;
+    // blurred grayscale of the previous and the current frame, the change mask and a ROI copy
+    private Mat previous = new Mat();
+    private Mat current = new Mat();
+    private final Mat changed = new Mat();
+    private final Mat roiMat = new Mat();
+    private boolean lastWasKeyframe;
+    private long lastSearchedPixels;
+
+    public SequenceCounter(CircleParams params, int keyframeInterval, int diffThreshold, double maxChangedRatio,
+                           int slack) {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be positive");
+        }
+        this.params = params;
+        this.keyframeInterval = keyframeInterval;
+        this.diffThreshold = diffThreshold;
+        this.maxChangedRatio = maxChangedRatio;
+        this.slack = slack;
+    }
+
+    public static void run(Options options) throws IOException {
+        // frames are compared and searched as Mats, videos are read by OpenCV
+        OpenCv.load();
+        SequenceCounter counter = new SequenceCounter(CircleParams.from(options),
+                options.getInt("keyframe-interval", 30),
+                options.getInt("diff-threshold", 20),
+                options.getDouble("max-changed", 0.3),
+                options.getInt("track-slack", 4));
+
+        PrintWriter tracksOut = null;
+        if (options.has("tracks")) {
+            tracksOut = new PrintWriter(Files.newBufferedWriter(Paths.get(options.get("tracks", null)),
+                    StandardCharsets.UTF_8));
+            tracksOut.println("frame,id,x,y,r");
+        }
+
+        long keyframeNanos = 0, roiNanos = 0;
+        int keyframes = 0, roiFrames = 0;
+        try {
+            if (options.has("video")) {
+                VideoCapture capture = new VideoCapture(options.get("video", null));
+                if (!capture.isOpened()) {
+                    throw new IOException("Cannot open video " + options.get("video", null));
+                }
+                Mat frame = new Mat();
+                try {
+                    for (long index = 0; capture.read(frame); index++) {
+                        long start = System.nanoTime();
+                        // the decoded BGR frame is searched as is, without a BufferedImage
+                        DetectionResult result = counter.process(new Preprocessed(frame));
+                        long nanos = System.nanoTime() - start;
+                        if (counter.lastWasKeyframe) {
+                            keyframeNanos += nanos;
+                            keyframes++;
+                        } else {
+                            roiNanos += nanos;
+                            roiFrames++;
+                        }
+                        report(counter, "frame " + index, result, nanos, tracksOut, index);
+                    }
+                } finally {
+                    capture.release();
+                    frame.release();
+                }
+            } else {
+                long index = 0;
+                for (Path path : frames(Paths.get(options.get("dir", "data")))) {
+                    BufferedImage image = ImageIO.read(path.toFile());
+                    if (image == null) {
+                        System.err.println("image is null: " + path.getFileName());
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    DetectionResult result = counter.process(image);
+                    long nanos = System.nanoTime() - start;
+                    if (counter.lastWasKeyframe) {
+                        keyframeNanos += nanos;
+                        keyframes++;
+                    } else {
+                        roiNanos += nanos;
+                        roiFrames++;
+                    }
+                    report(counter, path.getFileName().toString(), result, nanos, tracksOut, index++);
+                }
+            }
+        } finally {
+            counter.release();
+            if (tracksOut != null) {
+                tracksOut.close();
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%d keyframes, mean %.1f ms; %d ROI frames, mean %.1f ms",
+                keyframes, keyframes == 0 ? 0 : keyframeNanos / 1e6 / keyframes,
+                roiFrames, roiFrames == 0 ? 0 : roiNanos / 1e6 / roiFrames));
+    }
+
+    private static void report(SequenceCounter counter, String name, DetectionResult result, long nanos,
+                               PrintWriter tracksOut, long index) {
+        long pixels = (long) result.getWidth() * result.getHeight();
+        System.out.println(String.format(Locale.ROOT, "%s: %d objects, %s, %.1f%% of pixels searched, %.1f ms",
+                name, result.count(), counter.lastWasKeyframe ? "keyframe" : "roi",
+                100.0 * counter.lastSearchedPixels / Math.max(1, pixels), nanos / 1e6));
+        if (tracksOut != null) {
+            for (Track track : counter.tracks) {
+                tracksOut.println(String.format(Locale.ROOT, "%d,%d,%.1f,%.1f,%.1f",
+                        index, track.id, track.x, track.y, track.radius));
+            }
+        }
+    }
+
+    // Frame files sorted by name, annotated outputs are skipped
+    private static List<Path> frames(Path dir) throws IOException {
+        List<Path> frames = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (!path.toString().endsWith(Main.OUTPUT_SUFFIX) && Files.isRegularFile(path)) {
+                    frames.add(path);
+                }
+            }
+        }
+        Collections.sort(frames);
+        return frames;
+    }
+
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList(tracks);
+    }
+
+    /**
+     * Counts the circles of the next frame of the sequence.
+     */
+    public DetectionResult process(BufferedImage image) {
+        return process(new Preprocessed(image));
+    }
+
+    public DetectionResult process(Preprocessed frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        Imgproc.blur(frame.gray(), current, new Size(params.getBlurSize(), params.getBlurSize()));
+
+        boolean keyframe = frameIndex % keyframeInterval == 0 || previous.empty()
+                || previous.cols() != width || previous.rows() != height;
+        List<Rect> changedRegions = keyframe ? null : changedRegions(width, height);
+        if (changedRegions == null) {
+            keyframe = true;
+        }
+
+        if (keyframe) {
+            detectKeyframe(frame);
+            lastSearchedPixels = (long) width * height;
+        } else {
+            lastSearchedPixels = detectRegions(frame, changedRegions);
+        }
+        lastWasKeyframe = keyframe;
+
+        Mat swap = previous;
+        previous = current;
+        current = swap;
+        frameIndex++;
+
+        DetectionResult result = new DetectionResult("circles-sequence", width, height);
+        for (Track track : tracks) {
+            int r = (int) track.radius;
+            result.add(new DetectionResult.DetectedObject(track.x, track.y, track.radius, (int) (Math.PI * r * r)));
+        }
+        return result;
+    }
+
+    public void release() {
+        MatBridge.release(previous, current, changed, roiMat);
+    }
+
+    private void detectKeyframe(Preprocessed frame) {
+        CircleVerifier verifier = new CircleVerifier(frame.objectMask(params.getObjectRgb(), params.getMaxDelta()));
+        Mat circles = Main.findCircles(current, params);
+        DetectionResult found = new DetectionResult("circles", frame.getWidth(), frame.getHeight());
+        Main.verifyCircles(circles, verifier, params, found);
+        circles.release();
+
+        List<Track> previousTracks = tracks;
+        tracks = new ArrayList<>();
+        for (DetectionResult.DetectedObject circle : found.getObjects()) {
+            tracks.add(match(previousTracks, circle.getX(), circle.getY(), circle.getRadius()));
+        }
+    }
+
+    /**
+     * Refines every track in a ROI around it and searches the changed regions for new
+     * circles. Returns the number of pixels searched.
+     */
+    private long detectRegions(Preprocessed frame, List<Rect> changedRegions) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        long searched = 0;
+
+        List<Track> previousTracks = tracks;
+        tracks = new ArrayList<>();
+        List<Track> lost = new ArrayList<>();
+        for (Track track : previousTracks) {
+            int minRadius = Math.max(params.getMinRadius(), (int) track.radius - slack);
+            int maxRadius = Math.min(params.getMaxRadius(), (int) Math.ceil(track.radius) + slack);
+            int half = maxRadius + slack + params.getBlurSize();
+            Rect roi = clip(new Rect((int) track.x - half, (int) track.y - half, 2 * half + 1, 2 * half + 1),
+                    width, height);
+            if (roi == null || minRadius > maxRadius) {
+                lost.add(track);
+                continue;
+            }
+            searched += roi.area();
+
+            // minDist spanning the ROI keeps only the strongest circle
+            CircleParams refine = new CircleParams(params.getDp(), 2 * half, params.getParam1(), params.getParam2(),
+                    minRadius, maxRadius, params.getObjectRgb(), params.getMaxDelta(), params.getBlurSize(),
+                    params.getMinObjectRatio(), false);
+            List<DetectionResult.DetectedObject> found = detectIn(frame, roi, refine);
+            if (!found.isEmpty()) {
+                DetectionResult.DetectedObject circle = found.get(0);
+                track.x = circle.getX();
+                track.y = circle.getY();
+                track.radius = circle.getRadius();
+                tracks.add(track);
+            } else if (isUnchanged(roi)) {
+                // nothing moved here, the circle is just harder to see in this frame
+                tracks.add(track);
+            } else {
+                lost.add(track);
+            }
+        }
+
+        // Close tracks can refine to the same circle, only the older one keeps it
+        tracks = removeDuplicates(tracks);
+
+        double minDist = params.getMinDist();
+        for (Rect region : changedRegions) {
+            searched += region.area();
+            for (DetectionResult.DetectedObject circle : detectIn(frame, region, params)) {
+                boolean known = false;
+                for (Track track : tracks) {
+                    if (Math.hypot(track.x - circle.getX(), track.y - circle.getY()) < minDist) {
+                        known = true;
+                        break;
+                    }
+                }
+                if (!known) {
+                    tracks.add(match(lost, circle.getX(), circle.getY(), circle.getRadius()));
+                }
+            }
+        }
+        return searched;
+    }
+
+    /**
+     * The tracks without those closer than minDist to an older track, in their order.
+     * IDs are handed out in increasing order, so the lower ID is the older track.
+     */
+    private List<Track> removeDuplicates(List<Track> refined) {
+        List<Track> byAge = new ArrayList<>(refined);
+        byAge.sort(Comparator.comparingInt(Track::getId));
+        Set<Track> kept = new HashSet<>();
+        for (Track track : byAge) {
+            boolean duplicate = false;
+            for (Track older : kept) {
+                if (Math.hypot(older.x - track.x, older.y - track.y) < params.getMinDist()) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                kept.add(track);
+            }
+        }
+        List<Track> tracks = new ArrayList<>();
+        for (Track track : refined) {
+            if (kept.contains(track)) {
+                tracks.add(track);
+            }
+        }
+        return tracks;
+    }
+
+    private boolean isUnchanged(Rect roi) {
+        Mat sub = changed.submat(roi);
+        boolean unchanged = Core.countNonZero(sub) == 0;
+        sub.release();
+        return unchanged;
+    }
+
+    // Verified circles of one ROI in image coordinates
+    private List<DetectionResult.DetectedObject> detectIn(Preprocessed frame, Rect roi, CircleParams roiParams) {
+        Preprocessed tile = frame.crop(roi.x, roi.y, roi.width, roi.height);
+        CircleVerifier verifier;
+        try {
+            verifier = new CircleVerifier(tile.objectMask(params.getObjectRgb(), params.getMaxDelta()));
+        } finally {
+            tile.release();
+        }
+
+        // The blurred frame is reused, only the ROI is searched
+        Mat sub = current.submat(roi);
+        sub.copyTo(roiMat);
+        sub.release();
+        Mat circles = Main.findCircles(roiMat, roiParams);
+        DetectionResult found = new DetectionResult("circles", roi.width, roi.height);
+        Main.verifyCircles(circles, verifier, roiParams, found);
+        circles.release();
+
+        List<DetectionResult.DetectedObject> objects = new ArrayList<>();
+        for (DetectionResult.DetectedObject circle : found.getObjects()) {
+            objects.add(new DetectionResult.DetectedObject(circle.getX() + roi.x, circle.getY() + roi.y,
+                    circle.getRadius(), circle.getArea()));
+        }
+        return objects;
+    }
+
+    /**
+     * Bounding boxes of the changed pixels grown by the largest radius and merged where they
+     * overlap, or null if so much changed that a full pass is cheaper.
+     */
+    private List<Rect> changedRegions(int width, int height) {
+        Core.absdiff(current, previous, changed);
+        Imgproc.threshold(changed, changed, diffThreshold, 255, Imgproc.THRESH_BINARY);
+        Mat kernel = new Mat();
+        Imgproc.dilate(changed, changed, kernel, new Point(-1, -1), 2);
+        kernel.release();
+        if (Core.countNonZero(changed) > maxChangedRatio * width * height) {
+            return null;
+        }
+
+        List<MatOfPoint> contours = new ArrayList<>();
+        Mat hierarchy = new Mat();
+        // findContours modifies its input, the change mask is still needed for the tracks
+        Mat contourInput = changed.clone();
+        Imgproc.findContours(contourInput, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        MatBridge.release(contourInput, hierarchy);
+
+        int grow = params.getMaxRadius() + params.getBlurSize();
+        List<Rect> regions = new ArrayList<>();
+        for (MatOfPoint contour : contours) {
+            Rect box = Imgproc.boundingRect(contour);
+            contour.release();
+            Rect region = clip(new Rect(box.x - grow, box.y - grow, box.width + 2 * grow, box.height + 2 * grow),
+                    width, height);
+            if (region != null) {
+                regions.add(region);
+            }
+        }
+
+        // Merge overlapping regions so no area is searched twice
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < regions.size() && !merged; i++) {
+                for (int j = i + 1; j < regions.size() && !merged; j++) {
+                    Rect a = regions.get(i), b = regions.get(j);
+                    if (a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height) {
+                        int x0 = Math.min(a.x, b.x), y0 = Math.min(a.y, b.y);
+                        int x1 = Math.max(a.x + a.width, b.x + b.width), y1 = Math.max(a.y + a.height, b.y + b.height);
+                        regions.set(i, new Rect(x0, y0, x1 - x0, y1 - y0));
+                        regions.remove(j);
+                        merged = true;
+                    }
+                }
+            }
+        }
+        return regions;
+    }
+
+    // The track closest to (x, y) within minDist keeps its ID, otherwise a new track starts
+    private Track match(List<Track> candidates, double x, double y, double radius) {
+        Track best = null;
+        double bestDist = params.getMinDist();
+        for (Track track : candidates) {
+            double dist = Math.hypot(track.x - x, track.y - y);
+            if (dist < bestDist) {
+                best = track;
+                bestDist = dist;
+            }
+        }
+        if (best == null) {
+            return new Track(nextId++, x, y, radius);
+        }
+        candidates.remove(best);
+        best.x = x;
+        best.y = y;
+        best.radius = radius;
+        return best;
+    }
+
+    private static Rect clip(Rect rect, int width, int height) {
+        int x0 = Math.max(0, rect.x), y0 = Math.max(0, rect.y);
+        int x1 = Math.min(width, rect.x + rect.width), y1 = Math.min(height, rect.y + rect.height);
+        return x1 > x0 && y1 > y0 ? new Rect(x0, y0, x1 - x0, y1 - y0) : null;
+    }
+}
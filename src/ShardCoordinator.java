@@ -0,0 +1,454 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the images of a directory across worker JVMs and merges their results into one
+ * results file.
+ *
+ * Every worker thread connects to the coordinator socket and pulls one file at a time (see
+ * {@link ShardWorker}), so fast workers simply take more files. Once no file is left, an
+ * idle worker steals a copy of a file that has been running on another worker for longer
+ * than stealAfterMillis (0 never steals); the first result for a file wins. A file whose
+ * connection drops before its result arrives is put back at the head of the queue, and
+ * given up after maxAttempts tries, which keeps an image that crashes every JVM from
+ * stopping the run.
+ *
+ * The coordinator starts the local workers itself, with the same java and class path, and
+ * starts a new one when a worker exits before all files are done. Workers on other nodes
+ * can join with "Main worker --coordinator host:port" when the coordinator binds to an
+ * address they can reach.
+ *
+ * Protocol: a worker connection starts with PROTOCOL_MAGIC. The worker then sends
+ * REQUEST, and after the FILE answer RESULT with the {@link ResultRecord} or FAILED, each
+ * followed by the next REQUEST. The coordinator answers DONE when all files are finished.
+ */
+public class ShardCoordinator {
+    // "ECS" and the protocol version
+    static final int PROTOCOL_MAGIC = 0x45435302;
+    // worker to coordinator
+    static final int REQUEST = 1;
+    static final int RESULT = 2;
+    static final int FAILED = 3;
+    // coordinator to worker
+    static final int FILE = 4;
+    static final int DONE = 5;
+
+    // How long the workers get to exit after the last file
+    private static final long EXIT_TIMEOUT_NANOS = 10_000_000_000L;
+
+    // Options of the coordinator that are not passed on to the workers
+    private static final List<String> COORDINATOR_OPTIONS = Arrays.asList("dir", "workers", "worker-threads",
+            "worker-max-files", "worker-jvm-options", "bind", "port", "max-restarts", "max-attempts",
+            "steal-after-ms", "results", "results-format", "resume", "cache", "cache-size-mb", "threads",
+            "max-files", "coordinator");
+
+    private final ServerSocket server;
+    private final int maxAttempts;
+    private final long stealAfterNanos;
+    // may be null
+    private final ResultWriter results;
+
+    // all fields below are guarded by this
+    private final Deque<String> pending = new ArrayDeque<>();
+    private final Set<String> finished = new HashSet<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final int total;
+    private int processed;
+    private int failed;
+    private int reassigned;
+    private int stolen;
+    private boolean abandoned;
+    private long elapsedNanos;
+
+    public ShardCoordinator(ServerSocket server, List<String> files, int maxAttempts, long stealAfterMillis,
+                            ResultWriter results) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.server = server;
+        this.maxAttempts = maxAttempts;
+        this.stealAfterNanos = stealAfterMillis * 1_000_000L;
+        this.results = results;
+        this.pending.addAll(files);
+        this.total = files.size();
+    }
+
+    public static void run(Options options) throws IOException, InterruptedException {
+        Path dir = Paths.get(options.get("dir", "data"));
+        int workers = options.getInt("workers", 2);
+        int workerThreads = options.getInt("worker-threads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, workers)));
+        int maxRestarts = options.getInt("max-restarts", workers * 3);
+        // Invalid detection options fail here rather than in every worker
+        String detector = options.get("detector", "circles");
+        ImageDecoder.from(options, detector, Detectors.params(detector, options));
+
+        // Merged results of all workers, see Main.openResults
+        ResultWriter results = Main.openResults(options);
+        int skipped = 0;
+        List<String> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                // Skip output file
+                if (path.toString().endsWith(Main.OUTPUT_SUFFIX) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                if (results != null && results.isCompleted(path.getFileName().toString())) {
+                    skipped++;
+                    continue;
+                }
+                files.add(path.toAbsolutePath().toString());
+            }
+        }
+
+        // Loopback by default, --bind 0.0.0.0 lets workers on other nodes connect
+        InetAddress bind = InetAddress.getByName(options.get("bind", "127.0.0.1"));
+        ServerSocket server = new ServerSocket(options.getInt("port", 0), 50, bind);
+        ShardCoordinator coordinator = new ShardCoordinator(server, files, options.getInt("max-attempts", 3),
+                options.getInt("steal-after-ms", 10000), results);
+        String host = bind.isAnyLocalAddress() ? "127.0.0.1" : bind.getHostAddress();
+        System.out.println("Coordinating " + files.size() + " images on " + host + ":" + server.getLocalPort()
+                + " with " + workers + " local workers");
+
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command()
+                .orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+        // A worker that runs out of memory exits and is replaced instead of limping on
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        if (System.getProperty("java.library.path") != null) {
+            command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        }
+        for (String option : options.get("worker-jvm-options", "").trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Main", "worker",
+                "--coordinator", host + ":" + server.getLocalPort(), "--threads", String.valueOf(workerThreads),
+                "--max-files", String.valueOf(options.getInt("worker-max-files", 0))));
+        command.addAll(options.toArgs(COORDINATOR_OPTIONS));
+
+        try {
+            coordinator.run(command, workers, maxRestarts);
+        } finally {
+            server.close();
+            if (results != null) {
+                results.close();
+            }
+        }
+        coordinator.printSummary(skipped, workers);
+    }
+
+    /**
+     * Starts the given number of local workers with command and returns when every file is
+     * finished, or when the local workers were restarted more than maxRestarts times and no
+     * worker is connected.
+     */
+    public void run(List<String> command, int workers, int maxRestarts) throws InterruptedException {
+        long start = System.nanoTime();
+        Thread acceptor = new Thread(this::accept, "shard-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        Supervisor supervisor = new Supervisor(command, workers, maxRestarts);
+        synchronized (this) {
+            supervisor.running = workers;
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            int slot = i;
+            Thread thread = new Thread(() -> supervisor.supervise(slot), "shard-worker-" + slot);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        synchronized (this) {
+            while (finished.size() < total) {
+                if (workers > 0 && supervisor.running == 0 && connections.isEmpty()) {
+                    System.err.println("All workers failed, giving up on " + (total - finished.size()) + " images");
+                    abandoned = true;
+                    notifyAll();
+                    break;
+                }
+                // woken up by finished files and exiting workers, the timeout is only a safety net
+                wait(1000);
+            }
+            elapsedNanos = System.nanoTime() - start;
+        }
+        // Workers exit once they are told that there is nothing left, hung ones are killed
+        long deadline = System.nanoTime() + EXIT_TIMEOUT_NANOS;
+        synchronized (this) {
+            while (!connections.isEmpty() && System.nanoTime() < deadline) {
+                wait(Math.max(1, (deadline - System.nanoTime()) / 1_000_000L));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, (deadline - System.nanoTime()) / 1_000_000L));
+        }
+        supervisor.destroyAll();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread thread = new Thread(() -> serve(socket), "shard-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("Failed to accept a worker: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection connection = new Connection();
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            if (in.readInt() != PROTOCOL_MAGIC) {
+                throw new IOException("Not a worker");
+            }
+            synchronized (this) {
+                connections.add(connection);
+            }
+            while (true) {
+                int message = in.readUnsignedByte();
+                if (message == RESULT) {
+                    finish(connection, ResultRecord.readFrom(in));
+                } else if (message == FAILED) {
+                    finish(connection, null);
+                } else if (message == REQUEST) {
+                    String file = next(connection);
+                    if (file == null) {
+                        out.writeByte(DONE);
+                        out.flush();
+                        break;
+                    }
+                    out.writeByte(FILE);
+                    out.writeUTF(file);
+                    out.flush();
+                } else {
+                    throw new IOException("Unexpected message " + message);
+                }
+            }
+        } catch (EOFException e) {
+            // the worker exited, normally after reaching its file limit
+        } catch (IOException e) {
+            System.err.println("Lost a worker: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * The next file for connection: the head of the queue, else a copy of a file running
+     * too long on another connection. Waits while there is neither, and returns null when
+     * all files are finished.
+     */
+    private synchronized String next(Connection connection) throws InterruptedException {
+        while (true) {
+            if (finished.size() == total || abandoned) {
+                return null;
+            }
+            String file = pending.poll();
+            // a requeued file may have been finished by a stolen copy in the meantime
+            if (file != null && !finished.contains(file)) {
+                return assign(connection, file);
+            }
+            if (file == null) {
+                Connection straggler = straggler();
+                if (straggler != null) {
+                    stolen++;
+                    return assign(connection, straggler.file);
+                }
+                // look for stragglers again after a while, finished and requeued files wake up earlier
+                wait(stealAfterNanos > 0 ? Math.max(1, stealAfterNanos / 4_000_000L) : 1000);
+            }
+        }
+    }
+
+    private String assign(Connection connection, String file) {
+        connection.file = file;
+        connection.startNanos = System.nanoTime();
+        return file;
+    }
+
+    // The connection that runs its file the longest, if that is over stealAfterNanos and no copy runs yet
+    private Connection straggler() {
+        if (stealAfterNanos <= 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        Connection oldest = null;
+        for (Connection connection : connections) {
+            if (connection.file != null && now - connection.startNanos > stealAfterNanos
+                    && (oldest == null || connection.startNanos < oldest.startNanos)
+                    && copies(connection.file) == 1) {
+                oldest = connection;
+            }
+        }
+        return oldest;
+    }
+
+    private int copies(String file) {
+        int copies = 0;
+        for (Connection connection : connections) {
+            if (file.equals(connection.file)) {
+                copies++;
+            }
+        }
+        return copies;
+    }
+
+    // Records the outcome of the file of connection, a null record if it failed
+    private synchronized void finish(Connection connection, ResultRecord record) throws IOException {
+        String file = connection.file;
+        connection.file = null;
+        if (file == null || !finished.add(file)) {
+            // a copy finished first
+            return;
+        }
+        if (record == null) {
+            System.err.println("Failed to process " + new File(file).getName());
+            failed++;
+        } else {
+            if (results != null) {
+                results.write(record);
+            }
+            processed++;
+        }
+        notifyAll();
+    }
+
+    // Puts the file the connection was working on back into the queue
+    private synchronized void disconnect(Connection connection) {
+        connections.remove(connection);
+        String file = connection.file;
+        connection.file = null;
+        if (file != null && !finished.contains(file) && copies(file) == 0) {
+            int attempt = attempts.merge(file, 1, Integer::sum);
+            if (attempt >= maxAttempts) {
+                System.err.println("Giving up on " + new File(file).getName() + " after " + attempt + " attempts");
+                finished.add(file);
+                failed++;
+            } else {
+                System.err.println("Reassigning " + new File(file).getName() + " of a lost worker");
+                pending.addFirst(file);
+                reassigned++;
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void printSummary(int skipped, int workers) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("Processed %d images (%d failed, %d skipped) in %.2f s with %d workers",
+                processed, failed, skipped, seconds, workers));
+        System.out.println(String.format("Reassigned %d images of lost workers, stole %d", reassigned, stolen));
+        if (processed > 0) {
+            System.out.println(String.format("Throughput: %.2f images/s", processed / seconds));
+        }
+    }
+
+    // One worker thread and the file it is working on
+    private static class Connection {
+        // guarded by the coordinator, null while the worker has no file
+        String file;
+        long startNanos;
+    }
+
+    /**
+     * Keeps a local worker process running in each slot until all files are finished.
+     * Workers that exit early are restarted; a worker that exits normally reached its file
+     * limit and does not count against maxRestarts.
+     */
+    private class Supervisor {
+        private final List<String> command;
+        private final int maxRestarts;
+        // guarded by the coordinator
+        private final Process[] processes;
+        int running;
+        int restarts;
+
+        Supervisor(List<String> command, int workers, int maxRestarts) {
+            this.command = command;
+            this.processes = new Process[workers];
+            this.maxRestarts = maxRestarts;
+        }
+
+        void supervise(int slot) {
+            try {
+                while (!isDone()) {
+                    Process process = new ProcessBuilder(command).inheritIO().start();
+                    synchronized (ShardCoordinator.this) {
+                        processes[slot] = process;
+                    }
+                    int status = process.waitFor();
+                    if (isDone() || status == 0) {
+                        continue;
+                    }
+                    System.err.println("Worker " + slot + " exited with status " + status);
+                    synchronized (ShardCoordinator.this) {
+                        if (++restarts > maxRestarts) {
+                            System.err.println("Not restarting worker " + slot + " after " + maxRestarts + " restarts");
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to start worker " + slot + ": " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (ShardCoordinator.this) {
+                    running--;
+                    ShardCoordinator.this.notifyAll();
+                }
+            }
+        }
+
+        void destroyAll() {
+            synchronized (ShardCoordinator.this) {
+                for (int slot = 0; slot < processes.length; slot++) {
+                    if (processes[slot] != null && processes[slot].isAlive()) {
+                        System.err.println("Killing worker " + slot + ", it did not exit");
+                        processes[slot].destroyForcibly();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isDone() {
+        return finished.size() == total || abandoned;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Worker process of a {@link ShardCoordinator}: pulls file paths from the coordinator,
+ * processes them like batch mode and sends the records back.
+ *
+ * Every thread has its own connection and asks for one file at a time, so a busy worker
+ * never holds files another worker could take. The annotated images are written next to
+ * the source files, which therefore have to be at the same path on every node. With
+ * maxFiles the worker stops after that many files and leaves it to the coordinator to
+ * start a fresh JVM, which returns the native memory OpenCV kept.
+ */
+public class ShardWorker {
+    private final String host;
+    private final int port;
+    private final int threads;
+    // 0 for no limit
+    private final int maxFiles;
+    private final BatchProcessor processor;
+
+    private final AtomicInteger claimed = new AtomicInteger();
+
+    public ShardWorker(String host, int port, int threads, int maxFiles, BatchProcessor processor) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.threads = threads;
+        this.maxFiles = maxFiles;
+        this.processor = processor;
+    }
+
+    public static void run(Options options) throws IOException, InterruptedException {
+        String address = options.get("coordinator", null);
+        int colon = address == null ? -1 : address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("--coordinator host:port is required");
+        }
+        int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        String detector = options.get("detector", "circles");
+        Object params = Detectors.params(detector, options);
+        ImageDecoder decoder = ImageDecoder.from(options, detector, params);
+        // Records go to the coordinator, so the processor has no results file and no cache
+        BatchProcessor processor = new BatchProcessor(threads, threads, detector, params, decoder,
+                options.getBoolean("count-only", false), null, null);
+
+        new ShardWorker(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), threads,
+                options.getInt("max-files", 0), processor).run();
+    }
+
+    /**
+     * Works until the coordinator has no files left or maxFiles are done. Fails if a
+     * connection failed, the coordinator then reassigns the file it was working on.
+     */
+    public void run() throws IOException, InterruptedException {
+        // Workers free their pooled native Mats when the pool shuts down
+        ExecutorService pool = Executors.newFixedThreadPool(threads, MatBridge.releasingThreadFactory());
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        for (int i = 0; i < threads; i++) {
+            pool.execute(() -> {
+                try {
+                    work();
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void work() throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(ShardCoordinator.PROTOCOL_MAGIC);
+
+            while (maxFiles <= 0 || claimed.incrementAndGet() <= maxFiles) {
+                out.writeByte(ShardCoordinator.REQUEST);
+                out.flush();
+                int message = in.readUnsignedByte();
+                if (message == ShardCoordinator.DONE) {
+                    break;
+                }
+                if (message != ShardCoordinator.FILE) {
+                    throw new IOException("Unexpected message " + message + " from the coordinator");
+                }
+                String path = in.readUTF();
+                ResultRecord record = processor.process(new File(path));
+                // sent with the next request
+                if (record != null) {
+                    out.writeByte(ShardCoordinator.RESULT);
+                    record.writeTo(out);
+                } else {
+                    out.writeByte(ShardCoordinator.FAILED);
+                }
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import org.opencv.core.Mat;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Circle detection for very large images, one tile at a time.
+ *
+ * The image is split into square tiles whose cores partition the image. Every tile is
+ * processed together with a halo of at least maxRadius pixels so circles near the core
+ * border are seen completely; a tile only reports circles whose center lies in its core.
+ * Circles found twice across tile borders are merged with the Hough minDist rule.
+ * Masks and Mats are allocated per tile, so memory grows with the number of tiles in
+ * flight (at most one per worker thread) instead of with the image size.
+ */
+public class TiledCircleDetector {
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    private static TiledCircleDetector shared;
+
+    private final ExecutorService pool;
+    private final int threads;
+    private final int tileSize;
+
+    public TiledCircleDetector(ExecutorService pool, int threads, int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be positive");
+        }
+        this.pool = pool;
+        this.threads = threads;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Detector backed by a daemon pool with one thread per core, shared by all callers.
+     */
+    public static synchronized TiledCircleDetector shared() {
+        if (shared == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService pool = Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = MatBridge.releasingThreadFactory().newThread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
+            shared = new TiledCircleDetector(pool, threads, DEFAULT_TILE_SIZE);
+        }
+        return shared;
+    }
+
+    /**
+     * A circle to merge. Of two candidates closer than minDist the one with the higher
+     * priority is kept, each caller decides what that is: tiles use the distance to the
+     * nearest inner core border, the pyramid detector the Hough rank.
+     */
+    static class Candidate {
+        final double x, y, radius, area, priority;
+
+        Candidate(double x, double y, double radius, double area, double priority) {
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.area = area;
+            this.priority = priority;
+        }
+    }
+
+    public void detect(BufferedImage image, CircleParams params, DetectionResult result)
+            throws InterruptedException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int halo = params.getMaxRadius() + params.getBlurSize();
+
+        ExecutorCompletionService<List<Candidate>> completion = new ExecutorCompletionService<>(pool);
+        List<Candidate> candidates = new ArrayList<>();
+        AtomicInteger rejected = new AtomicInteger();
+        int submitted = 0, completed = 0;
+        try {
+            for (int y0 = 0; y0 < height; y0 += tileSize) {
+                for (int x0 = 0; x0 < width; x0 += tileSize) {
+                    // Keep at most one tile per worker in flight
+                    if (submitted - completed >= threads) {
+                        candidates.addAll(completion.take().get());
+                        completed++;
+                    }
+                    final int coreX = x0, coreY = y0;
+                    completion.submit(() -> detectTile(image, coreX, coreY, halo, params, rejected));
+                    submitted++;
+                }
+            }
+            while (completed < submitted) {
+                candidates.addAll(completion.take().get());
+                completed++;
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Tile detection failed", e.getCause());
+        }
+
+        for (Candidate candidate : merge(candidates, params.getMinDist())) {
+            result.add(new DetectionResult.DetectedObject(candidate.x, candidate.y, candidate.radius, candidate.area));
+        }
+        result.reject(rejected.get());
+    }
+
+    private List<Candidate> detectTile(BufferedImage image, int coreX, int coreY, int halo, CircleParams params,
+                                       AtomicInteger rejected) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int coreX1 = Math.min(coreX + tileSize, width);
+        int coreY1 = Math.min(coreY + tileSize, height);
+        int tileX = Math.max(coreX - halo, 0);
+        int tileY = Math.max(coreY - halo, 0);
+        int tileWidth = Math.min(coreX1 + halo, width) - tileX;
+        int tileHeight = Math.min(coreY1 + halo, height) - tileY;
+
+        // The sub-image shares the raster, only the tile is copied into the Mat
+        BufferedImage tile = image.getSubimage(tileX, tileY, tileWidth, tileHeight);
+        BitMask isObject = ColorMask.build(PixelView.of(tile), params.getObjectRgb(), params.getMaxDelta(), true, false);
+        CircleVerifier verifier = new CircleVerifier(isObject);
+        Mat circles = Main.houghCircles(MatBridge.toMat(tile), params);
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < circles.cols(); i++) {
+            double[] circle = circles.get(0, i);
+            double x = circle[0] + tileX, y = circle[1] + tileY;
+            if (x < coreX || x >= coreX1 || y < coreY || y >= coreY1) {
+                // owned by a neighbouring tile
+                continue;
+            }
+            int radius = (int) circle[2];
+            int area = (int) (Math.PI * radius * radius);
+            if (verifier.objectRatio((int) circle[0], (int) circle[1], radius) <= params.getMinObjectRatio()) {
+                rejected.incrementAndGet();
+                continue;
+            }
+
+            // Circles far from their tile border saw the most context and are kept first;
+            // borders with the image edge have no neighbour to duplicate the circle
+            double margin = Double.MAX_VALUE;
+            if (coreX > 0) margin = Math.min(margin, x - coreX);
+            if (coreX1 < width) margin = Math.min(margin, coreX1 - x);
+            if (coreY > 0) margin = Math.min(margin, y - coreY);
+            if (coreY1 < height) margin = Math.min(margin, coreY1 - y);
+            candidates.add(new Candidate(x, y, circle[2], area, margin));
+        }
+        circles.release();
+        return candidates;
+    }
+
+    /**
+     * Drops circles closer than minDist to an already kept one, keeping the candidates with
+     * the higher priority first.
+     */
+    static List<Candidate> merge(List<Candidate> candidates, double minDist) {
+        List<Candidate> sorted = new ArrayList<>(candidates);
+        Collections.sort(sorted, (a, b) -> Double.compare(b.priority, a.priority));
+
+        // Grid with minDist cells, a conflicting circle is always in one of the 9 nearby cells
+        Map<Long, List<Candidate>> grid = new HashMap<>();
+        List<Candidate> kept = new ArrayList<>();
+        for (Candidate candidate : sorted) {
+            long cellX = (long) Math.floor(candidate.x / minDist);
+            long cellY = (long) Math.floor(candidate.y / minDist);
+            boolean duplicate = false;
+            for (long dy = -1; dy <= 1 && !duplicate; dy++) {
+                for (long dx = -1; dx <= 1 && !duplicate; dx++) {
+                    List<Candidate> cell = grid.get(key(cellX + dx, cellY + dy));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Candidate other : cell) {
+                        double distX = other.x - candidate.x, distY = other.y - candidate.y;
+                        if (distX * distX + distY * distY < minDist * minDist) {
+                            duplicate = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (!duplicate) {
+                kept.add(candidate);
+                grid.computeIfAbsent(key(cellX, cellY), k -> new ArrayList<>()).add(candidate);
+            }
+        }
+        // Report in scan order like the single pass detector
+        Collections.sort(kept, (a, b) -> a.y != b.y ? Double.compare(a.y, b.y) : Double.compare(a.x, b.x));
+        return kept;
+    }
+
+    private static long key(long cellX, long cellY) {
+        return (cellX << 32) ^ (cellY & 0xFFFFFFFFL);
+    }
+}
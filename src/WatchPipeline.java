@@ -0,0 +1,415 @@
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processes images as they are dropped into a directory.
+ *
+ * A WatchService thread notices new files and hands them to a decode stage once they have
+ * not changed for settleMillis, so files still being written by a scanner are not read
+ * half way. Decode, detect and output (annotation, encoding and results) run on their own
+ * threads and are connected by bounded queues: a slow stage fills the queue in front of it
+ * and only then blocks the stage before it, so JPEG encoding does not stall detection
+ * until the output queue is full. Latency is measured from the first event of a file to
+ * its result. Images are decoded with an {@link ImageDecoder} and the decode threads reuse
+ * their readers.
+ */
+public class WatchPipeline {
+    // Marks the end of the stream for one thread of the next stage
+    private static final Item END = new Item(null, 0);
+
+    private static class Item {
+        final Path path;
+        final long arrivalNanos;
+        BufferedImage image;
+        // part of the source the image was decoded from, see ImageDecoder.sourceBounds
+        Rectangle bounds;
+        DetectionResult result;
+        long decodeNanos;
+        long detectNanos;
+
+        Item(Path path, long arrivalNanos) {
+            this.path = path;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    private interface Stage {
+        // Returns the item for the next stage, or null if the item is done
+        Item process(Item item) throws Exception;
+    }
+
+    private final Path dir;
+    private final String detector;
+    private final ImageDecoder decoder;
+    // recordParams for the decoded images
+    private final Object detectParams;
+    // the detector's own parameters, as recorded in the results
+    private final Object recordParams;
+    private final int decodeThreads;
+    private final int detectThreads;
+    private final int outputThreads;
+    private final long settleMillis;
+    private final boolean countOnly;
+    // may be null
+    private final ResultWriter results;
+
+    private final BlockingQueue<Item> decodeQueue;
+    private final BlockingQueue<Item> detectQueue;
+    private final BlockingQueue<Item> outputQueue;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+    private volatile WatchService watchService;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * params are the detector's own parameters, see {@link Detectors#params}.
+     */
+    public WatchPipeline(Path dir, String detector, Object params, ImageDecoder decoder,
+                         int decodeThreads, int detectThreads, int outputThreads, int queueCapacity,
+                         long settleMillis, boolean countOnly, ResultWriter results) {
+        if (decodeThreads < 1 || detectThreads < 1 || outputThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("thread counts and queue capacity must be positive");
+        }
+        this.dir = dir;
+        this.detector = detector;
+        this.decoder = decoder;
+        this.detectParams = decoder.scale(params);
+        this.recordParams = params;
+        this.decodeThreads = decodeThreads;
+        this.detectThreads = detectThreads;
+        this.outputThreads = outputThreads;
+        this.settleMillis = settleMillis;
+        this.countOnly = countOnly;
+        this.results = results;
+        this.decodeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.detectQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.outputQueue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public static void run(Options options) throws IOException, InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        String detector = options.get("detector", "circles");
+
+        Object params = Detectors.params(detector, options);
+        ResultWriter results = Main.openResults(options);
+
+        WatchPipeline pipeline = new WatchPipeline(Paths.get(options.get("dir", "data")), detector, params,
+                ImageDecoder.from(options, detector, params),
+                options.getInt("decode-threads", Math.max(1, cores / 4)),
+                options.getInt("detect-threads", cores),
+                options.getInt("output-threads", Math.max(1, cores / 4)),
+                options.getInt("queue-capacity", 4),
+                options.getInt("settle-ms", 500),
+                options.getBoolean("count-only", false),
+                results);
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            pipeline.stop();
+            try {
+                main.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        try {
+            pipeline.run();
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+        }
+    }
+
+    /**
+     * Watches until {@link #stop()} is called, then drains the pipeline and returns.
+     */
+    public void run() throws IOException, InterruptedException {
+        startStage("decode", decodeThreads, decodeQueue, detectQueue, detectThreads, this::decode);
+        startStage("detect", detectThreads, detectQueue, outputQueue, outputThreads, this::detect);
+        startStage("output", outputThreads, outputQueue, null, 0, this::output);
+
+        System.out.println("Watching " + dir.toAbsolutePath());
+        try {
+            watch();
+        } finally {
+            end(decodeQueue, decodeThreads);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            printSummary();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the watch service: " + e);
+            }
+        }
+    }
+
+    private void watch() throws IOException, InterruptedException {
+        // Files with events that are still settling, in arrival order, with arrival and last event time
+        Map<Path, long[]> pending = new LinkedHashMap<>();
+        // Files handed to the pipeline with their size and modification time at that point. A
+        // file written again under the same name differs and is processed again; deleted files
+        // are dropped, so the map only holds files that are still in the directory.
+        Map<Path, String> seen = new HashMap<>();
+
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            watchService = service;
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            // Files that arrived while nobody was watching
+            scan(pending, seen, true);
+
+            while (running) {
+                WatchKey key;
+                try {
+                    key = service.poll(Math.max(1, settleMillis / 2), TimeUnit.MILLISECONDS);
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // events were lost, fall back to listing the directory
+                            seen.keySet().removeIf(path -> !Files.exists(path));
+                            scan(pending, seen, false);
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            Path path = dir.resolve((Path) event.context());
+                            pending.remove(path);
+                            seen.remove(path);
+                        } else {
+                            track(dir.resolve((Path) event.context()), pending, seen);
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.err.println("Stopped watching " + dir + ", it is no longer accessible");
+                        break;
+                    }
+                }
+
+                long now = System.nanoTime();
+                for (Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Path, long[]> entry = it.next();
+                    if (now - entry.getValue()[1] >= TimeUnit.MILLISECONDS.toNanos(settleMillis)) {
+                        it.remove();
+                        String signature = signature(entry.getKey());
+                        if (signature == null) {
+                            // deleted before it settled
+                            continue;
+                        }
+                        seen.put(entry.getKey(), signature);
+                        // Blocks while the decode stage is behind
+                        decodeQueue.put(new Item(entry.getKey(), entry.getValue()[0]));
+                    }
+                }
+            }
+        } finally {
+            watchService = null;
+        }
+    }
+
+    /**
+     * Tracks every file of the directory. On the initial scan, files already in the results
+     * count as handed to the pipeline; later, a file with the same name is new.
+     */
+    private void scan(Map<Path, long[]> pending, Map<Path, String> seen, boolean initial) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (initial && results != null && results.isCompleted(path.getFileName().toString())) {
+                    String signature = signature(path);
+                    if (signature != null) {
+                        seen.put(path, signature);
+                    }
+                    continue;
+                }
+                track(path, pending, seen);
+            }
+        }
+    }
+
+    private void track(Path path, Map<Path, long[]> pending, Map<Path, String> seen) {
+        if (path.toString().endsWith(Main.OUTPUT_SUFFIX) || Files.isDirectory(path)) {
+            return;
+        }
+        // Skip files that were handed to the pipeline and have not changed since
+        String handed = seen.get(path);
+        if (handed != null && handed.equals(signature(path))) {
+            return;
+        }
+        long now = System.nanoTime();
+        long[] times = pending.get(path);
+        if (times == null) {
+            pending.put(path, new long[]{now, now});
+        } else {
+            times[1] = now;
+        }
+    }
+
+    // Size and modification time of a file, null if it does not exist anymore
+    private static String signature(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.size() + "@" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void startStage(String name, int count, BlockingQueue<Item> in, BlockingQueue<Item> out,
+                            int nextCount, Stage stage) {
+        // The last thread of a stage to finish ends the next stage
+        AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            Thread thread = MatBridge.releasingThreadFactory().newThread(() -> {
+                try {
+                    for (Item item = in.take(); item != END; item = in.take()) {
+                        Item next = null;
+                        try {
+                            next = stage.process(item);
+                        } catch (Exception e) {
+                            System.err.println("Failed to process " + item.path.getFileName() + ": " + e);
+                            failed.incrementAndGet();
+                        }
+                        if (next != null && out != null) {
+                            out.put(next);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // Also when interrupted or failed, or the next stage and run() would wait forever
+                    if (remaining.decrementAndGet() == 0 && out != null) {
+                        end(out, nextCount);
+                    }
+                }
+            });
+            thread.setName(name + "-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    // Puts END for count threads, even if the calling thread is interrupted
+    private static void end(BlockingQueue<Item> queue, int count) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int n = 0; n < count; ) {
+                try {
+                    queue.put(END);
+                    n++;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Item decode(Item item) throws IOException {
+        long start = System.nanoTime();
+        Metrics.Span span = Metrics.begin("decode");
+        try {
+            item.image = decoder.read(item.path.toFile());
+        } finally {
+            span.end();
+        }
+        item.decodeNanos = System.nanoTime() - start;
+        if (item.image == null) {
+            System.err.println("image is null: " + item.path.getFileName());
+            failed.incrementAndGet();
+            return null;
+        }
+        item.bounds = ImageDecoder.sourceBounds(item.image);
+        return item;
+    }
+
+    private Item detect(Item item) {
+        long start = System.nanoTime();
+        item.result = Main.count(detector, item.image, detectParams);
+        item.detectNanos = System.nanoTime() - start;
+        return item;
+    }
+
+    private Item output(Item item) throws IOException {
+        long start = System.nanoTime();
+        if (!countOnly) {
+            BufferedImage annotated;
+            Metrics.Span span = Metrics.begin("annotate");
+            try {
+                annotated = Annotator.annotate(item.image, item.result, detectParams);
+            } finally {
+                span.end();
+            }
+            span = Metrics.begin("encode");
+            try {
+                ImageIO.write(annotated, "jpg", Main.outputFileFor(item.path.toFile()));
+            } finally {
+                span.end();
+            }
+        }
+        long end = System.nanoTime();
+        // the decoded image is not needed anymore
+        item.image = null;
+        if (results != null) {
+            results.write(new ResultRecord(item.path.getFileName().toString(), recordParams, decoder,
+                    decoder.toSource(item.result, item.bounds), item.decodeNanos, item.detectNanos, end - start));
+        }
+
+        long latency = end - item.arrivalNanos;
+        latencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        processed.incrementAndGet();
+        System.out.println(String.format("%s: %d objects, latency %.1f ms (decode %.1f, detect %.1f, output %.1f)",
+                item.path.getFileName(), item.result.count(), latency / 1e6, item.decodeNanos / 1e6,
+                item.detectNanos / 1e6, (end - start) / 1e6));
+        return null;
+    }
+
+    private void printSummary() {
+        int done = processed.get();
+        System.out.println(String.format("Processed %d images (%d failed)", done, failed.get()));
+        if (done > 0) {
+            System.out.println(String.format("Latency from arrival to result: mean %.1f ms, max %.1f ms",
+                    latencyNanos.sum() / 1e6 / done, maxLatencyNanos.get() / 1e6));
+        }
+    }
+}